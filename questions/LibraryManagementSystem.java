@@ -1,5 +1,59 @@
 package questions;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
 import java.util.*;
+import java.io.*;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BinaryOperator;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.LongFunction;
+import java.util.function.LongSupplier;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+import java.util.zip.CRC32;
 
 // ====================== MODEL CLASSES ===========================
 
@@ -9,25 +63,212 @@ class Book {
     String isbn;
     String category;
 
-    int totalCopies = 0;
-    int availableCopies = 0;
+    // Dictionary ids of author/category; the strings above are the shared canonical instances
+    int authorId;
+    int categoryId;
+
+    volatile int totalCopies = 0;
+    volatile int availableCopies = 0;
+
+    // Seqlock over the (total, available) pair: odd while a two-field update is in flight.
+    // Single-field CAS on availableCopies leaves it alone, any pair read around one is valid.
+    volatile int version = 0;
+
+    private static final AtomicIntegerFieldUpdater<Book> VERSION =
+            AtomicIntegerFieldUpdater.newUpdater(Book.class, "version");
+    private static final AtomicIntegerFieldUpdater<Book> TOTAL =
+            AtomicIntegerFieldUpdater.newUpdater(Book.class, "totalCopies");
+    private static final AtomicIntegerFieldUpdater<Book> AVAILABLE =
+            AtomicIntegerFieldUpdater.newUpdater(Book.class, "availableCopies");
 
     Book(String title, String author, String isbn, String category) {
+        this(title, StringDictionary.AUTHORS.idOf(author), isbn, StringDictionary.CATEGORIES.idOf(category));
+    }
+
+    Book(String title, int authorId, String isbn, int categoryId) {
         this.title = title;
-        this.author = author;
+        this.author = StringDictionary.AUTHORS.valueOf(authorId);
         this.isbn = isbn;
-        this.category = category;
+        this.category = StringDictionary.CATEGORIES.valueOf(categoryId);
+        this.authorId = authorId;
+        this.categoryId = categoryId;
+    }
+
+    int total() {
+        return totalCopies;
+    }
+
+    int available() {
+        return availableCopies;
+    }
+
+    boolean casAvailable(int expect, int update) {
+        return AVAILABLE.compareAndSet(this, expect, update);
+    }
+
+    void addCopies(int total, int available) {
+        int v = beginWrite();
+        TOTAL.addAndGet(this, total);
+        AVAILABLE.addAndGet(this, available);
+        version = v + 2;
+    }
+
+    // Optimistic read of both counters, packed as total << 32 | available. Never blocks and
+    // never writes; it only retries if a two-field update overlapped the read.
+    long counts() {
+        while (true) {
+            int v = version;
+            if ((v & 1) == 0) {
+                int total = total(), available = available();
+                if (version == v) return pack(total, available);
+            }
+            Thread.onSpinWait();
+        }
+    }
+
+    static long pack(int total, int available) {
+        return (long) total << 32 | (available & 0xFFFFFFFFL);
+    }
+
+    static int totalOf(long counts) {
+        return (int) (counts >>> 32);
+    }
+
+    static int availableOf(long counts) {
+        return (int) counts;
+    }
+
+    private int beginWrite() {
+        while (true) {
+            int v = version;
+            if ((v & 1) == 0 && VERSION.compareAndSet(this, v, v + 1)) return v;
+            Thread.onSpinWait();
+        }
+    }
+
+    boolean tryTake(int count) {
+        while (true) {
+            int available = available();
+            if (available < count) return false;
+            if (casAvailable(available, available - count)) return true;
+        }
+    }
+
+    // Detached copy with a consistent (total, available) pair
+    Book snapshot() {
+        long counts = counts();
+        Book copy = new Book(title, authorId, isbn, categoryId);
+        copy.totalCopies = totalOf(counts);
+        copy.availableCopies = availableOf(counts);
+        return copy;
+    }
+
+    // Detached copy so a policy sees one consistent value even while desks race on this book
+    Book snapshot(int available) {
+        Book copy = new Book(title, authorId, isbn, categoryId);
+        copy.totalCopies = total();
+        copy.availableCopies = available;
+        return copy;
     }
 }
 
 class User {
     String name;
-    int currentBorrowCount = 0;
+    volatile int currentBorrowCount = 0;
     int maxLimit = 3; // default
 
+    private static final AtomicIntegerFieldUpdater<User> BORROWED =
+            AtomicIntegerFieldUpdater.newUpdater(User.class, "currentBorrowCount");
+
     User(String name) {
         this.name = name;
     }
+
+    int borrowed() {
+        return currentBorrowCount;
+    }
+
+    boolean casBorrowCount(int expect, int update) {
+        return BORROWED.compareAndSet(this, expect, update);
+    }
+
+    void release() {
+        release(1);
+    }
+
+    void release(int count) {
+        BORROWED.addAndGet(this, -count);
+    }
+
+    User snapshot(int borrowed) {
+        User copy = new User(name);
+        copy.maxLimit = maxLimit;
+        copy.currentBorrowCount = borrowed;
+        return copy;
+    }
+}
+
+// Flyweight pool: a catalog has a few hundred categories and a modest set of authors, so each
+// distinct string is kept once and books refer to it by a dense int id. Equality on ids is
+// a single int compare.
+class StringDictionary {
+
+    static final StringDictionary AUTHORS = new StringDictionary();
+    static final StringDictionary CATEGORIES = new StringDictionary();
+
+    private final Map<String, Integer> ids = new ConcurrentHashMap<>();
+    private volatile String[] values = new String[64];
+    private int size;
+
+    // -1 stands for null
+    int idOf(String value) {
+        if (value == null) return -1;
+        Integer id = ids.get(value);
+        return id != null ? id : assign(value);
+    }
+
+    // -1 if the string was never seen
+    int lookup(String value) {
+        Integer id = value == null ? null : ids.get(value);
+        return id == null ? -1 : id;
+    }
+
+    String valueOf(int id) {
+        return id < 0 ? null : values[id];
+    }
+
+    int size() {
+        return ids.size();
+    }
+
+    // The value is stored before the id is published through the map
+    private synchronized int assign(String value) {
+        Integer id = ids.get(value);
+        if (id != null) return id;
+        if (size == values.length) values = Arrays.copyOf(values, size * 2);
+        values[size] = value;
+        ids.put(value, size);
+        return size++;
+    }
+}
+
+enum LibraryResult {
+    STOCKED,
+    BORROWED,
+    RETURNED,
+    RETURNED_UNKNOWN, // ISBN was not in the catalog and has been added
+    NOT_FOUND,
+    POLICY_DENIED,
+    ABORTED, // item was fine, another item in the same batch failed
+    FOUND    // availability lookup hit
+}
+
+// Reusable out-parameter for the quiet service API, so reporting the outcome allocates
+// nothing. The call itself still may: the policy runs on User/Book snapshots, and some
+// repositories build a view per lookup.
+class Receipt {
+    LibraryResult result;
+    int available;
 }
 
 // ====================== INTERFACES ===============================
@@ -37,6 +278,44 @@ interface IBookRepository {
     void addBook(Book b);
     Book getBook(String isbn);
     boolean exists(String isbn);
+    void forEachBook(Consumer<Book> action);
+
+    // -1 when the ISBN is unknown; implementations with their own storage can answer
+    // without materializing a Book
+    default int availableCopies(String isbn) {
+        Book b = getBook(isbn);
+        return b == null ? -1 : b.available();
+    }
+
+    // Stores b unless its ISBN is already present and returns the stored book either way, so
+    // two desks stocking the same new title cannot replace each other's copy. The default
+    // is atomic against other addIfAbsent calls; maps with a native putIfAbsent override it.
+    default Book addIfAbsent(Book b) {
+        synchronized (this) {
+            Book existing = getBook(b.isbn);
+            if (existing != null) return existing;
+            addBook(b);
+            return getBook(b.isbn);
+        }
+    }
+
+    // Batch form for result pages: out[i] is the count for isbns[i], -1 when unknown
+    default void availableCopies(String[] isbns, int[] out) {
+        for (int i = 0; i < isbns.length; i++) {
+            out[i] = availableCopies(isbns[i]);
+        }
+    }
+
+    // Bulk stock-in: new ISBNs are added, existing ones get the incoming copies on top.
+    // An empty entry goes in through addIfAbsent and the copies are added to whatever is
+    // stored, so a desk stocking the same title meanwhile keeps its copies.
+    default void mergeAll(Collection<Book> books) {
+        for (Book b : books) {
+            long counts = b.counts();
+            addIfAbsent(new Book(b.title, b.authorId, b.isbn, b.categoryId))
+                    .addCopies(Book.totalOf(counts), Book.availableOf(counts));
+        }
+    }
 }
 
 // Open-Close for changing borrowing rules
@@ -44,17 +323,41 @@ interface BorrowPolicy {
     boolean canBorrow(User user, Book book);
 }
 
+// Sink for service outcomes; must not block the calling desk
+interface LibraryLog {
+    LibraryLog NONE = (result, isbn, available) -> {};
+
+    void record(LibraryResult result, String isbn, int available);
+}
+
+// Observer: told about every mutation after it has been applied, on the caller's thread
+interface InventoryObserver {
+    // Called before a mutation is applied; throwing refuses it. For observers that must not
+    // fall behind memory, e.g. a log that can no longer write.
+    default void beforeMutation() {}
+
+    default void onStockAdded(Book book, int count) {}
+    default void onBorrowed(Book book, User user) {}
+    default void onReturned(Book book, User user) {}
+}
+
 // ====================== REPOSITORY IMPLEMENTATION ===============
 
 class InMemoryBookRepository implements IBookRepository {
 
-    private Map<String, Book> books = new HashMap<>();
+    private Map<String, Book> books = new ConcurrentHashMap<>();
 
     @Override
     public void addBook(Book b) {
         books.put(b.isbn, b);
     }
 
+    @Override
+    public Book addIfAbsent(Book b) {
+        Book existing = books.putIfAbsent(b.isbn, b);
+        return existing != null ? existing : b;
+    }
+
     @Override
     public Book getBook(String isbn) {
         return books.get(isbn);
@@ -64,6 +367,388 @@ class InMemoryBookRepository implements IBookRepository {
     public boolean exists(String isbn) {
         return books.containsKey(isbn);
     }
+
+    @Override
+    public void forEachBook(Consumer<Book> action) {
+        books.values().forEach(action);
+    }
+}
+
+// Catalog-scale repository: ISBN-10/13 keys are packed into a long in an open-addressing
+// table and each title is one row of int/String columns, author and category as dictionary
+// ids; Book objects are only built as views on getBook. RepositoryBenchmark measures the
+// heap per title and the lookup latency against InMemoryBookRepository.
+class PrimitiveBookRepository implements IBookRepository {
+
+    private static final int CHUNK_BITS = 12; // rows live in fixed chunks so views never move
+    private static final int CHUNK_MASK = (1 << CHUNK_BITS) - 1;
+    private static final VarHandle KEYS = MethodHandles.arrayElementVarHandle(long[].class);
+    private static final VarHandle COUNTS = MethodHandles.arrayElementVarHandle(int[].class);
+
+    // keys[i] == 0 marks an empty bucket, rows[i] is that key's row in the columns
+    private static final class Table {
+        final long[] keys;
+        final int[] rows;
+        final int mask;
+
+        Table(int capacity) {
+            keys = new long[capacity];
+            rows = new int[capacity];
+            mask = capacity - 1;
+        }
+    }
+
+    private volatile Table table = new Table(1 << 10);
+    private volatile int[][] totals = new int[0][];
+    private volatile int[][] availables = new int[0][];
+    private volatile int[][] versions = new int[0][];   // per-row seqlock, see Book.counts
+    private volatile String[][] titles = new String[0][];
+    private volatile int[][] authors = new int[0][];    // StringDictionary.AUTHORS ids
+    private volatile int[][] categories = new int[0][]; // StringDictionary.CATEGORIES ids
+    private int size = 0;
+
+    // Ids that are not ISBN-10/13 (e.g. local accession numbers) fall back to plain objects
+    private final Map<String, Book> others = new ConcurrentHashMap<>();
+
+    @Override
+    public synchronized void addBook(Book b) {
+        long key = encode(b.isbn);
+        if (key == 0) {
+            others.put(b.isbn, b);
+            return;
+        }
+
+        int row = find(table, key);
+        boolean fresh = row < 0;
+        if (fresh) {
+            row = size++;
+            ensureRow(row);
+        }
+
+        int chunk = row >>> CHUNK_BITS, i = row & CHUNK_MASK;
+        titles[chunk][i] = b.title;
+        authors[chunk][i] = b.authorId;
+        categories[chunk][i] = b.categoryId;
+        long counts = b.counts();
+        int v = beginWrite(chunk, i);
+        COUNTS.setVolatile(totals[chunk], i, Book.totalOf(counts));
+        COUNTS.setVolatile(availables[chunk], i, Book.availableOf(counts));
+        COUNTS.setVolatile(versions[chunk], i, v + 2);
+
+        if (fresh) {
+            if (size * 2 > table.keys.length) {
+                table = rehash(table, table.keys.length * 2);
+            }
+            insert(table, key, row);
+        }
+    }
+
+    // Whole batch under one lock acquisition
+    @Override
+    public synchronized void mergeAll(Collection<Book> books) {
+        for (Book b : books) {
+            long key = encode(b.isbn);
+            int row = key == 0 ? -1 : find(table, key);
+            if (row < 0) {
+                Book existing = key == 0 ? others.get(b.isbn) : null;
+                if (existing == null) addBook(b);
+                else existing.addCopies(b.total(), b.available());
+            } else {
+                addCounts(row >>> CHUNK_BITS, row & CHUNK_MASK, b.total(), b.available());
+            }
+        }
+    }
+
+    // Straight from the column: no view, no lock, no write
+    @Override
+    public int availableCopies(String isbn) {
+        long key = encode(isbn);
+        if (key == 0) {
+            Book b = others.get(isbn);
+            return b == null ? -1 : b.available();
+        }
+        int row = find(table, key);
+        return row < 0 ? -1 : (int) COUNTS.getVolatile(availables[row >>> CHUNK_BITS], row & CHUNK_MASK);
+    }
+
+    // Staged like a gather: encode every key, then resolve every row, then read every
+    // counter. No iteration of a pass depends on another's load, so the CPU keeps many
+    // table and column misses in flight instead of finishing one lookup before the next
+    // starts. Nothing is written to shared memory; the scratch arrays are per call.
+    @Override
+    public void availableCopies(String[] isbns, int[] out) {
+        Table t = table;
+        int[][] available = availables;
+        long[] keys = new long[isbns.length];
+        int[] rows = new int[isbns.length];
+        for (int i = 0; i < isbns.length; i++) {
+            keys[i] = encode(isbns[i]);
+        }
+        for (int i = 0; i < isbns.length; i++) {
+            if (keys[i] == 0) {
+                Book b = others.get(isbns[i]);
+                out[i] = b == null ? -1 : b.available();
+                rows[i] = -1;
+            } else {
+                rows[i] = find(t, keys[i]);
+                if (rows[i] < 0) out[i] = -1;
+            }
+        }
+        for (int i = 0; i < isbns.length; i++) {
+            int row = rows[i];
+            if (row >= 0) out[i] = (int) COUNTS.getVolatile(available[row >>> CHUNK_BITS], row & CHUNK_MASK);
+        }
+    }
+
+    @Override
+    public Book getBook(String isbn) {
+        long key = encode(isbn);
+        if (key == 0) {
+            return others.get(isbn);
+        }
+        int row = find(table, key);
+        return row < 0 ? null : new RowView(decode(key), row); // canonical id, whatever the spelling
+    }
+
+    @Override
+    public boolean exists(String isbn) {
+        long key = encode(isbn);
+        return key == 0 ? others.containsKey(isbn) : find(table, key) >= 0;
+    }
+
+    @Override
+    public void forEachBook(Consumer<Book> action) {
+        Table t = table;
+        for (int i = 0; i < t.keys.length; i++) {
+            long key = (long) KEYS.getAcquire(t.keys, i);
+            if (key != 0) action.accept(new RowView(decode(key), t.rows[i]));
+        }
+        others.values().forEach(action);
+    }
+
+    // Packs an ISBN-10/13 (hyphens and spaces ignored, trailing X allowed on ISBN-10) as
+    // base-11 digits plus a length bit; returns 0 for anything else.
+    static long encode(String isbn) {
+        long value = 0;
+        int len = 0;
+        boolean sawX = false;
+        for (int k = 0; k < isbn.length(); k++) {
+            char c = isbn.charAt(k);
+            if (c == '-' || c == ' ') continue;
+            if (sawX) return 0;
+            int d;
+            if (c >= '0' && c <= '9') d = c - '0';
+            else if (c == 'X' || c == 'x') { d = 10; sawX = true; }
+            else return 0;
+            if (++len > 13) return 0;
+            value = value * 11 + d;
+        }
+        if (len == 10) return (value << 1) + 1;
+        if (len == 13 && !sawX) return (value << 1 | 1) + 1;
+        return 0;
+    }
+
+    // Canonical (unhyphenated) form of an encoded key
+    static String decode(long key) {
+        long v = key - 1;
+        char[] digits = new char[(v & 1) == 1 ? 13 : 10];
+        long value = v >>> 1;
+        for (int k = digits.length - 1; k >= 0; k--) {
+            int d = (int) (value % 11);
+            digits[k] = d == 10 ? 'X' : (char) ('0' + d);
+            value /= 11;
+        }
+        return new String(digits);
+    }
+
+    private static int find(Table t, long key) {
+        for (int i = mix(key) & t.mask; ; i = (i + 1) & t.mask) {
+            long k = (long) KEYS.getAcquire(t.keys, i);
+            if (k == key) return t.rows[i];
+            if (k == 0) return -1;
+        }
+    }
+
+    // The row is written before the key is released, so a reader that sees the key sees the row
+    private static void insert(Table t, long key, int row) {
+        int i = mix(key) & t.mask;
+        while (t.keys[i] != 0) i = (i + 1) & t.mask;
+        t.rows[i] = row;
+        KEYS.setRelease(t.keys, i, key);
+    }
+
+    private static Table rehash(Table old, int capacity) {
+        Table t = new Table(capacity);
+        for (int i = 0; i < old.keys.length; i++) {
+            if (old.keys[i] != 0) insert(t, old.keys[i], old.rows[i]);
+        }
+        return t;
+    }
+
+    private static int mix(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    private int beginWrite(int chunk, int i) {
+        int[] version = versions[chunk];
+        while (true) {
+            int v = (int) COUNTS.getVolatile(version, i);
+            if ((v & 1) == 0 && COUNTS.compareAndSet(version, i, v, v + 1)) return v;
+            Thread.onSpinWait();
+        }
+    }
+
+    private void addCounts(int chunk, int i, int total, int available) {
+        int v = beginWrite(chunk, i);
+        COUNTS.getAndAdd(totals[chunk], i, total);
+        COUNTS.getAndAdd(availables[chunk], i, available);
+        COUNTS.setVolatile(versions[chunk], i, v + 2);
+    }
+
+    private long readCounts(int chunk, int i) {
+        int[] version = versions[chunk];
+        while (true) {
+            int v = (int) COUNTS.getVolatile(version, i);
+            if ((v & 1) == 0) {
+                int total = (int) COUNTS.getVolatile(totals[chunk], i);
+                int available = (int) COUNTS.getVolatile(availables[chunk], i);
+                if ((int) COUNTS.getVolatile(version, i) == v) return Book.pack(total, available);
+            }
+            Thread.onSpinWait();
+        }
+    }
+
+    private void ensureRow(int row) {
+        int chunk = row >>> CHUNK_BITS;
+        if (chunk < totals.length) return;
+        int n = chunk + 1;
+        int[][] t = Arrays.copyOf(totals, n);
+        int[][] a = Arrays.copyOf(availables, n);
+        int[][] v = Arrays.copyOf(versions, n);
+        String[][] ti = Arrays.copyOf(titles, n);
+        int[][] au = Arrays.copyOf(authors, n);
+        int[][] ca = Arrays.copyOf(categories, n);
+        t[chunk] = new int[1 << CHUNK_BITS];
+        a[chunk] = new int[1 << CHUNK_BITS];
+        v[chunk] = new int[1 << CHUNK_BITS];
+        ti[chunk] = new String[1 << CHUNK_BITS];
+        au[chunk] = new int[1 << CHUNK_BITS];
+        ca[chunk] = new int[1 << CHUNK_BITS];
+        titles = ti;
+        authors = au;
+        categories = ca;
+        availables = a;
+        versions = v;
+        totals = t;
+    }
+
+    // Live view: counter reads and CAS go straight to the columns, the fields are just
+    // the values at the time of the lookup
+    private final class RowView extends Book {
+        private final int[] total;
+        private final int[] available;
+        private final int chunk;
+        private final int i;
+
+        RowView(String isbn, int row) {
+            super(titles[row >>> CHUNK_BITS][row & CHUNK_MASK],
+                    authors[row >>> CHUNK_BITS][row & CHUNK_MASK],
+                    isbn,
+                    categories[row >>> CHUNK_BITS][row & CHUNK_MASK]); // ids, decoded by Book
+            this.total = totals[row >>> CHUNK_BITS];
+            this.available = availables[row >>> CHUNK_BITS];
+            this.chunk = row >>> CHUNK_BITS;
+            this.i = row & CHUNK_MASK;
+            this.totalCopies = total();
+            this.availableCopies = available();
+        }
+
+        @Override
+        int total() {
+            return (int) COUNTS.getVolatile(total, i);
+        }
+
+        @Override
+        int available() {
+            return (int) COUNTS.getVolatile(available, i);
+        }
+
+        @Override
+        boolean casAvailable(int expect, int update) {
+            return COUNTS.compareAndSet(available, i, expect, update);
+        }
+
+        @Override
+        void addCopies(int total, int available) {
+            addCounts(chunk, i, total, available);
+        }
+
+        @Override
+        long counts() {
+            return readCounts(chunk, i);
+        }
+    }
+}
+
+// Heap per title and lookup latency of the two in-memory repositories over the same
+// catalog. Titles share a few hundred strings, so the numbers show the indexing and
+// counter overhead rather than the text. Whichever repository runs second inherits the
+// first one's JIT profile and heap layout, so for latency run one per JVM:
+//   java -Xmx2g questions.RepositoryBenchmark [titles] [inmemory|primitive]
+class RepositoryBenchmark {
+
+    public static void main(String[] args) throws InterruptedException {
+        int titles = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        String[] queries = new String[1 << 16];
+        Random random = new Random(42);
+        for (int i = 0; i < queries.length; i++) queries[i] = isbn(random.nextInt(titles));
+
+        String which = args.length > 1 ? args[1] : "both";
+        if (!which.equals("primitive")) {
+            measure("InMemoryBookRepository", new InMemoryBookRepository(), titles, queries);
+        }
+        if (!which.equals("inmemory")) {
+            measure("PrimitiveBookRepository", new PrimitiveBookRepository(), titles, queries);
+        }
+    }
+
+    private static void measure(String name, IBookRepository repo, int titles, String[] queries)
+            throws InterruptedException {
+        long before = usedHeap();
+        for (int i = 0; i < titles; i++) {
+            Book b = new Book("Title " + (i % 500), "Author " + (i % 97), isbn(i), "Category " + (i % 13));
+            b.addCopies(3, 3);
+            repo.addBook(b);
+        }
+        long bytes = usedHeap() - before;
+
+        long sum = 0, availableNanos = 0, getBookNanos = 0;
+        for (int round = 0; round < 5; round++) { // the last round is reported
+            long start = System.nanoTime();
+            for (String q : queries) sum += repo.availableCopies(q);
+            availableNanos = System.nanoTime() - start;
+            start = System.nanoTime();
+            for (String q : queries) sum += repo.getBook(q).available();
+            getBookNanos = System.nanoTime() - start;
+        }
+        System.out.printf("%-24s %6.1f bytes/title, availableCopies %5.1f ns, getBook+available %5.1f ns (%d)%n",
+                name, (double) bytes / titles, (double) availableNanos / queries.length,
+                (double) getBookNanos / queries.length, sum);
+    }
+
+    private static String isbn(int n) {
+        return String.format("978%010d", n);
+    }
+
+    private static long usedHeap() throws InterruptedException {
+        Runtime rt = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(50);
+        }
+        return rt.totalMemory() - rt.freeMemory();
+    }
 }
 
 // ====================== POLICY IMPLEMENTATION ====================
@@ -76,69 +761,4452 @@ class DefaultBorrowPolicy implements BorrowPolicy {
     }
 }
 
-// ====================== SERVICE ================================
+// ====================== POLICY ENGINE ===========================
 
-class LibraryService {
+// Composes many borrowing rules into one BorrowPolicy. Nested compiled policies are
+// flattened into a single rule array, evaluation short-circuits on the first rejection and
+// the array is periodically re-sorted so the rules that reject most often run first.
+// Rules that only look at the user (tier, fines...) can be memoized per user for a while.
+class PolicyBuilder {
 
-    private final IBookRepository repo;       // DIP: depends on abstraction
-    private final BorrowPolicy borrowPolicy;  // OCP: pluggable borrow rule
+    private final List<CompiledBorrowPolicy.Rule> rules = new ArrayList<>();
+    private long memoNanos = 0;
 
-    LibraryService(IBookRepository repo, BorrowPolicy policy) {
-        this.repo = repo;
-        this.borrowPolicy = policy;
+    // The two checks DefaultBorrowPolicy makes, as separate rules
+    static PolicyBuilder defaults() {
+        return new PolicyBuilder()
+                .rule("within-limit", (u, b) -> u.currentBorrowCount < u.maxLimit)
+                .rule("in-stock", (u, b) -> b.availableCopies > 0);
     }
 
-    public void addBookStock(Book b, int count) {
-        if (!repo.exists(b.isbn)) {
-            repo.addBook(b);
+    PolicyBuilder rule(String name, BorrowPolicy check) {
+        if (check instanceof CompiledBorrowPolicy) {
+            CompiledBorrowPolicy nested = (CompiledBorrowPolicy) check;
+            rules.addAll(nested.rules());
+        } else {
+            rules.add(new CompiledBorrowPolicy.Rule(name, check, false));
         }
-        b.totalCopies += count;
-        b.availableCopies += count;
+        return this;
     }
 
-    public void checkAvailability(String isbn) {
-        Book b = repo.getBook(isbn);
+    // Must only depend on fields that stay put between borrows, or memoization goes stale
+    PolicyBuilder userRule(String name, Predicate<User> check) {
+        rules.add(new CompiledBorrowPolicy.Rule(name, (u, b) -> check.test(u), true));
+        return this;
+    }
 
-        if (b == null) {
-            System.out.println("Book not found.");
-        } else {
-            System.out.println("Available copies: " + b.availableCopies);
+    PolicyBuilder denyCategories(Set<String> categories) {
+        BitSet denied = new BitSet();
+        for (String c : categories) denied.set(StringDictionary.CATEGORIES.idOf(c));
+        return rule("category", (u, b) -> b.categoryId < 0 || !denied.get(b.categoryId));
+    }
+
+    PolicyBuilder memoizeUserRules(long duration, TimeUnit unit) {
+        memoNanos = unit.toNanos(duration);
+        return this;
+    }
+
+    // Every policy gets fresh rule instances, so policies built from one builder, or nesting
+    // the same policy, keep separate reordering statistics
+    BorrowPolicy build() {
+        List<CompiledBorrowPolicy.Rule> copies = new ArrayList<>(rules.size());
+        for (CompiledBorrowPolicy.Rule r : rules) copies.add(r.copy());
+        return new CompiledBorrowPolicy(copies, memoNanos);
+    }
+}
+
+class CompiledBorrowPolicy implements BorrowPolicy {
+
+    private static final int REORDER_EVERY = 1024;
+
+    static final class Rule {
+        final String name;
+        final BorrowPolicy check;
+        final boolean userOnly;
+        // Racy on purpose: these only steer the ordering heuristic
+        long runs;
+        long rejects;
+
+        Rule(String name, BorrowPolicy check, boolean userOnly) {
+            this.name = name;
+            this.check = check;
+            this.userOnly = userOnly;
+        }
+
+        double rejectRate() {
+            return (rejects + 1.0) / (runs + 2.0);
+        }
+
+        Rule copy() {
+            return new Rule(name, check, userOnly);
         }
     }
 
-    public void borrowBook(String isbn, User user) {
-        Book b = repo.getBook(isbn);
+    private static final class Memo {
+        final boolean pass;
+        final long expiresAt;
 
-        if (b == null) {
-            System.out.println("Book not found in library.");
-            return;
+        Memo(boolean pass, long expiresAt) {
+            this.pass = pass;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private final List<Rule> all;
+    private final Rule[] userRules; // evaluated through the memo when memoization is on
+    private final long memoNanos;
+    private final Map<String, Memo> memo = new ConcurrentHashMap<>();
+    private volatile Rule[] order;
+    private int evaluations;
+
+    CompiledBorrowPolicy(List<Rule> rules, long memoNanos) {
+        this.all = List.copyOf(rules);
+        this.memoNanos = memoNanos;
+        List<Rule> user = new ArrayList<>(), rest = new ArrayList<>();
+        for (Rule r : rules) {
+            (memoNanos > 0 && r.userOnly ? user : rest).add(r);
         }
+        this.userRules = user.toArray(new Rule[0]);
+        this.order = rest.toArray(new Rule[0]);
+    }
 
-        if (!borrowPolicy.canBorrow(user, b)) {
-            System.out.println("Borrow not allowed based on policy.");
-            return;
+    List<Rule> rules() {
+        return all;
+    }
+
+    @Override
+    public boolean canBorrow(User user, Book book) {
+        if (userRules.length > 0 && !userRulesPass(user, book)) {
+            return false;
+        }
+        if ((++evaluations & (REORDER_EVERY - 1)) == 0) {
+            reorder();
+        }
+        for (Rule r : order) {
+            r.runs++;
+            if (!r.check.canBorrow(user, book)) {
+                r.rejects++;
+                return false;
+            }
         }
+        return true;
+    }
 
-        b.availableCopies--;
-        user.currentBorrowCount++;
+    private boolean userRulesPass(User user, Book book) {
+        long now = System.nanoTime();
+        Memo m = memo.get(user.name);
+        if (m == null || now - m.expiresAt > 0) {
+            boolean pass = true;
+            for (Rule r : userRules) {
+                if (!r.check.canBorrow(user, book)) {
+                    pass = false;
+                    break;
+                }
+            }
+            m = new Memo(pass, now + memoNanos);
+            memo.put(user.name, m);
+        }
+        return m.pass;
+    }
 
-        System.out.println("Borrowed successfully!");
+    // Most-rejecting first; counts are halved so the order follows recent traffic
+    private void reorder() {
+        Rule[] next = order.clone();
+        Arrays.sort(next, Comparator.comparingDouble(Rule::rejectRate).reversed());
+        for (Rule r : next) {
+            r.runs >>= 1;
+            r.rejects >>= 1;
+        }
+        order = next;
     }
+}
 
-    public void returnBook(String isbn, User user) {
-        Book b = repo.getBook(isbn);
+// Compiled policy against the naive form: the same rules as a fixed chain of canBorrow
+// calls in the order they were written. The rejecting rules are written last, which is
+// the case the adaptive ordering is for. The memoized variant reads the clock on every
+// call, so it only wins when user rules cost more than that read. Run with
+//   java questions.PolicyBenchmark [evaluations]
+class PolicyBenchmark {
 
-        if (b == null) {
-            System.out.println("Unknown book! Adding to library...");
-            b = new Book("Unknown", "Unknown", isbn, "Misc");
-            repo.addBook(b);
+    public static void main(String[] args) {
+        int evaluations = args.length > 0 ? Integer.parseInt(args[0]) : 5_000_000;
+        Set<String> suspended = new HashSet<>();
+        for (int i = 0; i < 1000; i += 7) suspended.add("user" + i);
+
+        PolicyBuilder builder = PolicyBuilder.defaults()
+                .rule("has-title", (u, b) -> b.title != null)
+                .userRule("named", u -> u.name != null && !u.name.isEmpty())
+                .userRule("not-suspended", u -> !suspended.contains(u.name))
+                .denyCategories(Set.of("Reference", "Archive"));
+        List<BorrowPolicy> chain = new ArrayList<>();
+        for (CompiledBorrowPolicy.Rule r : ((CompiledBorrowPolicy) builder.build()).rules()) chain.add(r.check);
+        BorrowPolicy naive = (u, b) -> {
+            for (BorrowPolicy p : chain) {
+                if (!p.canBorrow(u, b)) return false;
+            }
+            return true;
+        };
+        BorrowPolicy compiled = builder.build();
+        BorrowPolicy memoized = builder.memoizeUserRules(1, TimeUnit.SECONDS).build();
+
+        String[] categories = { "Fiction", "Science", "Reference", "History", "Archive" };
+        User[] users = new User[1000];
+        Book[] books = new Book[4096];
+        for (int i = 0; i < users.length; i++) users[i] = new User("user" + i);
+        for (int i = 0; i < books.length; i++) {
+            books[i] = new Book("Title " + i, "Author " + (i % 97), "isbn-" + i, categories[i % categories.length]);
+            books[i].addCopies(3, i % 11 == 0 ? 0 : 3);
         }
 
-        b.availableCopies++;
-        b.totalCopies++;
-        user.currentBorrowCount--;
+        for (int round = 0; round < 3; round++) { // the first rounds are JIT warm-up
+            long naiveNanos = time(naive, users, books, evaluations);
+            long compiledNanos = time(compiled, users, books, evaluations);
+            long memoizedNanos = time(memoized, users, books, evaluations);
+            System.out.printf("round %d: naive %.1f, compiled %.1f, compiled+memo %.1f ns/eval%n", round,
+                    (double) naiveNanos / evaluations, (double) compiledNanos / evaluations,
+                    (double) memoizedNanos / evaluations);
+        }
+        int disagreements = 0;
+        for (int i = 0; i < 100_000; i++) {
+            User u = users[i % users.length];
+            Book b = books[(i * 31) & (books.length - 1)];
+            boolean expected = naive.canBorrow(u, b);
+            if (compiled.canBorrow(u, b) != expected || memoized.canBorrow(u, b) != expected) disagreements++;
+        }
+        System.out.println("decisions that differ: " + disagreements);
+    }
 
-        System.out.println("Returned successfully!");
+    private static long time(BorrowPolicy policy, User[] users, Book[] books, int evaluations) {
+        int allowed = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < evaluations; i++) {
+            if (policy.canBorrow(users[i % users.length], books[(i * 31) & (books.length - 1)])) allowed++;
+        }
+        long nanos = System.nanoTime() - start;
+        if (allowed < 0) System.out.println(allowed); // keeps the loop from being dropped
+        return nanos;
+    }
+}
+
+// ====================== SERVICE ================================
+
+class LibraryService {
+
+    private final IBookRepository repo;       // DIP: depends on abstraction
+    private final BorrowPolicy borrowPolicy;  // OCP: pluggable borrow rule
+    private final List<InventoryObserver> observers = new CopyOnWriteArrayList<>();
+    private final Map<String, Queue<Hold>> holds = new ConcurrentHashMap<>();
+    private volatile LibraryLog log = LibraryLog.NONE;
+    private volatile LibraryMetrics metrics; // null = not instrumented, no clock reads
+
+    // The patron's handle on a waitlist entry. Cancelling and being served race for the same
+    // flag, so a hold is either cancelled or given a copy, never both.
+    private static final class Hold extends CompletableFuture<LibraryResult> {
+        final User user;
+        private final AtomicBoolean claimed = new AtomicBoolean();
+
+        Hold(User user) {
+            this.user = user;
+        }
+
+        boolean claim() {
+            return claimed.compareAndSet(false, true);
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            return claim() && super.cancel(mayInterruptIfRunning);
+        }
+    }
+
+    LibraryService(IBookRepository repo, BorrowPolicy policy) {
+        this.repo = repo;
+        this.borrowPolicy = policy;
+    }
+
+    public void addObserver(InventoryObserver observer) {
+        observers.add(observer);
+    }
+
+    public void setLog(LibraryLog log) {
+        this.log = log;
+    }
+
+    public void setMetrics(LibraryMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    public void addBookStock(Book b, int count) {
+        addStock(b, count, null);
+    }
+
+    public void checkAvailability(String isbn) {
+        int available = availableCopies(isbn);
+
+        if (available < 0) {
+            System.out.println("Book not found.");
+        } else {
+            System.out.println("Available copies: " + available);
+        }
+    }
+
+    public void borrowBook(String isbn, User user) {
+        LibraryResult result = borrow(isbn, user, null);
+
+        if (result == LibraryResult.NOT_FOUND) {
+            System.out.println("Book not found in library.");
+        } else if (result == LibraryResult.POLICY_DENIED) {
+            System.out.println("Borrow not allowed based on policy.");
+        } else {
+            System.out.println("Borrowed successfully!");
+        }
+    }
+
+    public void returnBook(String isbn, User user) {
+        if (returnCopy(isbn, user, null) == LibraryResult.RETURNED_UNKNOWN) {
+            System.out.println("Unknown book! Adding to library...");
+        }
+        System.out.println("Returned successfully!");
+    }
+
+    // ---- Quiet API: no console output, outcome as a constant, counts as primitives. ----
+    // receipt may be null; desks that want the remaining count keep one and reuse it.
+
+    public LibraryResult addStock(Book b, int count, Receipt receipt) {
+        LibraryMetrics m = metrics;
+        if (m == null) return doAddStock(b, count, receipt);
+        long start = m.startTimer();
+        LibraryResult result = doAddStock(b, count, receipt);
+        m.record(LibraryMetrics.Op.STOCK, result, start);
+        return result;
+    }
+
+    // -1 when the ISBN is unknown
+    public int availableCopies(String isbn) {
+        LibraryMetrics m = metrics;
+        if (m == null) return doAvailableCopies(isbn);
+        long start = m.startTimer();
+        int available = doAvailableCopies(isbn);
+        m.record(LibraryMetrics.Op.AVAILABILITY, available < 0 ? LibraryResult.NOT_FOUND : LibraryResult.FOUND, start);
+        return available;
+    }
+
+    public LibraryResult borrow(String isbn, User user, Receipt receipt) {
+        LibraryMetrics m = metrics;
+        if (m == null) return doBorrow(isbn, user, receipt);
+        long start = m.startTimer();
+        LibraryResult result = doBorrow(isbn, user, receipt);
+        m.record(LibraryMetrics.Op.BORROW, result, start);
+        return result;
+    }
+
+    public LibraryResult returnCopy(String isbn, User user, Receipt receipt) {
+        LibraryMetrics m = metrics;
+        if (m == null) return doReturnCopy(isbn, user, receipt);
+        long start = m.startTimer();
+        LibraryResult result = doReturnCopy(isbn, user, receipt);
+        m.record(LibraryMetrics.Op.RETURN, result, start);
+        return result;
+    }
+
+    private LibraryResult doAddStock(Book b, int count, Receipt receipt) {
+        beforeMutation();
+        Book stored = repo.addIfAbsent(b);
+        stored.addCopies(count, count);
+        for (InventoryObserver o : observers) o.onStockAdded(stored, count);
+        serveHolds(stored);
+        return finish(receipt, LibraryResult.STOCKED, stored.isbn, stored.available());
+    }
+
+    // Availability for a whole results page in one repository call; out[i] is -1 for unknown
+    public void availableCopies(String[] isbns, int[] out) {
+        repo.availableCopies(isbns, out);
+    }
+
+    private int doAvailableCopies(String isbn) {
+        return repo.availableCopies(isbn);
+    }
+
+    private LibraryResult doBorrow(String isbn, User user, Receipt receipt) {
+        Book b = repo.getBook(isbn);
+        if (b == null) {
+            return finish(receipt, LibraryResult.NOT_FOUND, isbn, -1);
+        }
+        beforeMutation();
+        if (!tryBorrow(b, user)) {
+            return finish(receipt, LibraryResult.POLICY_DENIED, isbn, b.available());
+        }
+        for (InventoryObserver o : observers) o.onBorrowed(b, user);
+        return finish(receipt, LibraryResult.BORROWED, isbn, b.available());
+    }
+
+    private LibraryResult doReturnCopy(String isbn, User user, Receipt receipt) {
+        beforeMutation();
+        Book b = repo.getBook(isbn);
+        LibraryResult result = LibraryResult.RETURNED;
+
+        if (b == null) {
+            b = repo.addIfAbsent(new Book("Unknown", "Unknown", isbn, "Misc"));
+            result = LibraryResult.RETURNED_UNKNOWN;
+        }
+
+        b.addCopies(1, 0);
+        user.release();
+        releaseCopy(b); // observers hear of the return once the copy is shelved or handed on
+        for (InventoryObserver o : observers) o.onReturned(b, user);
+        return finish(receipt, result, isbn, b.available());
+    }
+
+    // Any observer may refuse the mutation before it touches memory
+    private void beforeMutation() {
+        for (InventoryObserver o : observers) o.beforeMutation();
+    }
+
+    private LibraryResult finish(Receipt receipt, LibraryResult result, String isbn, int available) {
+        if (receipt != null) {
+            receipt.result = result;
+            receipt.available = available;
+        }
+        log.record(result, isbn, available);
+        return result;
+    }
+
+    // Lock-free: the policy runs on a snapshot, then the copy and the user slot are each
+    // claimed with one CAS against exactly the values it saw. Losing a race re-reads and retries.
+    private boolean tryBorrow(Book b, User user) {
+        while (true) {
+            int available = b.available();
+            int held = user.borrowed();
+
+            if (!borrowPolicy.canBorrow(user.snapshot(held), b.snapshot(available))) {
+                return false;
+            }
+            if (!b.casAvailable(available, available - 1)) {
+                continue;
+            }
+            if (user.casBorrowCount(held, held + 1)) {
+                return true;
+            }
+            releaseCopy(b); // user raced on another desk: hand the copy back (a hold may take it), retry
+        }
+    }
+
+    // Kiosk checkout: all or nothing. Titles are claimed in ISBN order so concurrent batches
+    // contend in the same order, and the policy runs once per title against the count the
+    // user would hold with the whole batch.
+    public LibraryResult[] borrowBatch(List<String> isbns, User user) {
+        int n = isbns.size();
+        TreeMap<String, Integer> wanted = new TreeMap<>();
+        for (String isbn : isbns) {
+            wanted.merge(isbn, 1, Integer::sum);
+        }
+
+        Book[] books = new Book[wanted.size()];
+        int[] counts = new int[wanted.size()];
+        int g = 0;
+        for (Map.Entry<String, Integer> e : wanted.entrySet()) {
+            books[g] = repo.getBook(e.getKey());
+            if (books[g] == null) {
+                return batchFailure(isbns, e.getKey(), LibraryResult.NOT_FOUND);
+            }
+            counts[g++] = e.getValue();
+        }
+
+        beforeMutation();
+        while (true) {
+            int held = user.borrowed();
+            User projected = user.snapshot(held + n - 1);
+            for (int i = 0; i < books.length; i++) {
+                int available = books[i].available();
+                if (available < counts[i]
+                        || !borrowPolicy.canBorrow(projected, books[i].snapshot(available - counts[i] + 1))) {
+                    return batchFailure(isbns, books[i].isbn, LibraryResult.POLICY_DENIED);
+                }
+            }
+            if (!user.casBorrowCount(held, held + n)) {
+                continue;
+            }
+
+            int taken = 0;
+            while (taken < books.length && books[taken].tryTake(counts[taken])) {
+                taken++;
+            }
+            if (taken == books.length) {
+                for (int i = 0; i < books.length; i++) {
+                    for (int c = 0; c < counts[i]; c++) {
+                        for (InventoryObserver o : observers) o.onBorrowed(books[i], user);
+                    }
+                }
+                LibraryResult[] results = new LibraryResult[n];
+                Arrays.fill(results, LibraryResult.BORROWED);
+                return results;
+            }
+
+            // a copy went to another desk since the check: undo and re-evaluate
+            for (int i = 0; i < taken; i++) {
+                for (int c = 0; c < counts[i]; c++) releaseCopy(books[i]); // holds queued meanwhile come first
+            }
+            user.release(n);
+        }
+    }
+
+    public LibraryResult[] returnBatch(List<String> isbns, User user) {
+        TreeMap<String, Integer> returned = new TreeMap<>();
+        for (String isbn : isbns) {
+            returned.merge(isbn, 1, Integer::sum);
+        }
+
+        beforeMutation();
+        user.release(isbns.size());
+        for (Map.Entry<String, Integer> e : returned.entrySet()) {
+            Book b = repo.getBook(e.getKey());
+            if (b == null) {
+                b = repo.addIfAbsent(new Book("Unknown", "Unknown", e.getKey(), "Misc"));
+            }
+            b.addCopies(e.getValue(), 0);
+            for (int i = 0; i < e.getValue(); i++) {
+                releaseCopy(b);
+                for (InventoryObserver o : observers) o.onReturned(b, user);
+            }
+        }
+
+        LibraryResult[] results = new LibraryResult[isbns.size()];
+        Arrays.fill(results, LibraryResult.RETURNED);
+        return results;
+    }
+
+    // Waitlist instead of retrying: completes with BORROWED once a copy is handed over (or
+    // right away if one is on the shelf), POLICY_DENIED if the user is no longer eligible
+    // when their turn comes. Completion runs off the returning desk's thread.
+    public CompletableFuture<LibraryResult> placeHold(String isbn, User user) {
+        Book b = repo.getBook(isbn);
+        if (b == null) {
+            return CompletableFuture.completedFuture(LibraryResult.NOT_FOUND);
+        }
+        beforeMutation();
+        if (tryBorrow(b, user)) {
+            for (InventoryObserver o : observers) o.onBorrowed(b, user);
+            return CompletableFuture.completedFuture(LibraryResult.BORROWED);
+        }
+
+        Hold hold = new Hold(user);
+        holds.computeIfAbsent(b.isbn, k -> new ConcurrentLinkedQueue<>()).add(hold);
+        serveHolds(b); // a copy may have been shelved between the failed borrow and the enqueue
+        return hold;
+    }
+
+    // A copy in hand goes to the head of the queue and is never shelved while anyone eligible
+    // is waiting.
+    private void releaseCopy(Book b) {
+        if (!serveNextHold(b)) {
+            b.addCopies(0, 1);
+            serveHolds(b); // a hold placed after our poll would otherwise miss this copy
+        }
+    }
+
+    private void serveHolds(Book b) {
+        Queue<Hold> queue = holds.get(b.isbn);
+        while (queue != null && !queue.isEmpty() && b.tryTake(1)) {
+            if (!serveNextHold(b)) {
+                b.addCopies(0, 1);
+            }
+        }
+    }
+
+    private boolean serveNextHold(Book b) {
+        Queue<Hold> queue = holds.get(b.isbn);
+        if (queue == null) return false;
+
+        Hold hold;
+        while ((hold = queue.poll()) != null) {
+            if (!hold.claim()) continue; // cancelled by the patron
+            if (claimSlot(b, hold.user)) {
+                for (InventoryObserver o : observers) o.onBorrowed(b, hold.user);
+                hold.completeAsync(() -> LibraryResult.BORROWED);
+                return true;
+            }
+            hold.completeAsync(() -> LibraryResult.POLICY_DENIED);
+        }
+        return false;
+    }
+
+    // Policy check for a copy already taken off the shelf on the user's behalf
+    private boolean claimSlot(Book b, User user) {
+        while (true) {
+            int held = user.borrowed();
+            if (!borrowPolicy.canBorrow(user.snapshot(held), b.snapshot(1))) {
+                return false;
+            }
+            if (user.casBorrowCount(held, held + 1)) {
+                return true;
+            }
+        }
+    }
+
+    private static LibraryResult[] batchFailure(List<String> isbns, String culprit, LibraryResult reason) {
+        LibraryResult[] results = new LibraryResult[isbns.size()];
+        for (int i = 0; i < results.length; i++) {
+            results[i] = isbns.get(i).equals(culprit) ? reason : LibraryResult.ABORTED;
+        }
+        return results;
+    }
+}
+
+// ====================== LOANS ===================================
+
+class Loan {
+    final String userName;
+    final String isbn;
+    final long borrowedAt;
+    final long dueAt;
+
+    // timing wheel bucket links, guarded by the wheel
+    Loan prev, next;
+    Loan[] bucket;
+    int slot;
+
+    Loan(String userName, String isbn, long borrowedAt, long dueAt) {
+        this.userName = userName;
+        this.isbn = isbn;
+        this.borrowedAt = borrowedAt;
+        this.dueAt = dueAt;
+    }
+}
+
+// Hierarchical timing wheel (4 levels x 64 slots). A loan sits in the coarsest slot that
+// still tells its due time apart and is cascaded down as time approaches it, so scheduling,
+// cancelling and firing are all O(1) amortized; no sweep over open loans ever happens.
+class TimingWheel {
+
+    private static final int BITS = 6, SLOTS = 1 << BITS, LEVELS = 4;
+
+    private final long tickMillis;
+    private final Loan[][] heads = new Loan[LEVELS][SLOTS];
+    private final Consumer<Loan> onExpired;
+    private long currentTick;
+
+    TimingWheel(long tickMillis, long startMillis, Consumer<Loan> onExpired) {
+        this.tickMillis = tickMillis;
+        this.currentTick = startMillis / tickMillis;
+        this.onExpired = onExpired;
+    }
+
+    synchronized void schedule(Loan loan) {
+        place(loan, dueTick(loan));
+    }
+
+    synchronized void cancel(Loan loan) {
+        if (loan.bucket == null) return;
+        if (loan.prev != null) loan.prev.next = loan.next;
+        else loan.bucket[loan.slot] = loan.next;
+        if (loan.next != null) loan.next.prev = loan.prev;
+        loan.prev = loan.next = null;
+        loan.bucket = null;
+    }
+
+    // Fires everything due up to now; callbacks run outside the lock
+    void advanceTo(long nowMillis) {
+        List<Loan> expired = new ArrayList<>();
+        synchronized (this) {
+            long target = nowMillis / tickMillis;
+            while (currentTick < target) {
+                currentTick++;
+                for (int level = LEVELS - 1; level > 0; level--) {
+                    if ((currentTick & ((1L << (BITS * level)) - 1)) == 0) {
+                        cascade(level, (int) (currentTick >>> (BITS * level)) & (SLOTS - 1));
+                    }
+                }
+                Loan loan = detach(0, (int) currentTick & (SLOTS - 1));
+                while (loan != null) {
+                    Loan next = loan.next;
+                    loan.prev = loan.next = null;
+                    expired.add(loan);
+                    loan = next;
+                }
+            }
+        }
+        expired.forEach(onExpired);
+    }
+
+    private void cascade(int level, int slot) {
+        Loan loan = detach(level, slot);
+        while (loan != null) {
+            Loan next = loan.next;
+            loan.prev = loan.next = null;
+            place(loan, dueTick(loan));
+            loan = next;
+        }
+    }
+
+    // Rounded up so a loan never fires before it is actually due
+    private long dueTick(Loan loan) {
+        return (loan.dueAt + tickMillis - 1) / tickMillis;
+    }
+
+    private void place(Loan loan, long dueTick) {
+        long delta = Math.max(dueTick - currentTick, 1); // already due: fire on the next tick
+        int level = 0;
+        while (level < LEVELS - 1 && delta >= (1L << (BITS * (level + 1)))) level++;
+        long tick = currentTick + delta;
+        int slot = (int) (tick >>> (BITS * level)) & (SLOTS - 1);
+
+        Loan[] bucket = heads[level];
+        loan.bucket = bucket;
+        loan.slot = slot;
+        loan.prev = null;
+        loan.next = bucket[slot];
+        if (loan.next != null) loan.next.prev = loan;
+        bucket[slot] = loan;
+    }
+
+    private Loan detach(int level, int slot) {
+        Loan head = heads[level][slot];
+        heads[level][slot] = null;
+        for (Loan l = head; l != null; l = l.next) l.bucket = null;
+        return head;
+    }
+}
+
+// Who holds what and until when. Plugs into LibraryService as an observer; borrows open a
+// loan with a due date, returns close the oldest open loan of that title for the user.
+class LoanLedger implements InventoryObserver {
+
+    private final Map<String, Map<String, Deque<Loan>>> byUser = new ConcurrentHashMap<>();
+    private final TimingWheel wheel;
+    private final long loanMillis;
+    private final LongSupplier clock;
+
+    LoanLedger(long loanMillis, long tickMillis, LongSupplier clock, Consumer<Loan> onOverdue) {
+        this.loanMillis = loanMillis;
+        this.clock = clock;
+        this.wheel = new TimingWheel(tickMillis, clock.getAsLong(), onOverdue);
+    }
+
+    @Override
+    public void onBorrowed(Book book, User user) {
+        long now = clock.getAsLong();
+        Loan loan = new Loan(user.name, book.isbn, now, now + loanMillis);
+        Deque<Loan> loans = byUser.computeIfAbsent(user.name, k -> new ConcurrentHashMap<>())
+                .computeIfAbsent(book.isbn, k -> new ConcurrentLinkedDeque<>());
+        loans.addLast(loan);
+        wheel.schedule(loan);
+    }
+
+    @Override
+    public void onReturned(Book book, User user) {
+        Map<String, Deque<Loan>> loans = byUser.get(user.name);
+        Deque<Loan> open = loans == null ? null : loans.get(book.isbn);
+        Loan loan = open == null ? null : open.pollFirst();
+        if (loan != null) {
+            wheel.cancel(loan);
+        }
+    }
+
+    List<Loan> loansOf(User user) {
+        List<Loan> result = new ArrayList<>();
+        Map<String, Deque<Loan>> loans = byUser.get(user.name);
+        if (loans != null) loans.values().forEach(result::addAll);
+        return result;
+    }
+
+    // Drive from a scheduler (or a test clock); fires onOverdue for each loan past due
+    void tick() {
+        wheel.advanceTo(clock.getAsLong());
+    }
+}
+
+// ====================== LOGGING =================================
+
+// LibraryLog that hands entries to a background writer through a preallocated ring, so the
+// desk thread only claims a slot and copies three fields. Formatting and the actual
+// println happen on the writer thread; when the ring is full new entries are dropped
+// and counted rather than stalling the desk.
+class AsyncLibraryLog implements LibraryLog, Closeable {
+
+    private static final class Slot {
+        volatile long published = -1;
+        LibraryResult result;
+        String isbn;
+        int available;
+    }
+
+    private final Slot[] ring;
+    private final int mask;
+    private final AtomicLong claimed = new AtomicLong();
+    private volatile long consumed = 0;
+    private final LongAdder dropped = new LongAdder();
+    private final Thread writer;
+    private volatile boolean running = true;
+
+    AsyncLibraryLog(int capacity, PrintStream out) {
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        ring = new Slot[size];
+        for (int i = 0; i < size; i++) ring[i] = new Slot();
+        mask = size - 1;
+        writer = new Thread(() -> drain(out), "library-log");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    @Override
+    public void record(LibraryResult result, String isbn, int available) {
+        long seq;
+        do {
+            seq = claimed.get();
+            if (seq - consumed >= ring.length) {
+                dropped.increment();
+                return;
+            }
+        } while (!claimed.compareAndSet(seq, seq + 1));
+
+        Slot slot = ring[(int) seq & mask];
+        slot.result = result;
+        slot.isbn = isbn;
+        slot.available = available;
+        slot.published = seq;
+    }
+
+    long dropped() {
+        return dropped.sum();
+    }
+
+    private void drain(PrintStream out) {
+        long next = 0;
+        while (running || next < claimed.get()) {
+            Slot slot = ring[(int) next & mask];
+            if (slot.published != next) {
+                LockSupport.parkNanos(100_000);
+                continue;
+            }
+            out.println(slot.result + " " + slot.isbn + " available=" + slot.available);
+            slot.isbn = null;
+            consumed = ++next;
+        }
+        out.flush();
+    }
+
+    // Flushes what has been recorded so far and stops the writer
+    @Override
+    public void close() {
+        running = false;
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
+
+// ====================== METRICS =================================
+
+// Log-linear latency histogram: 8 sub-buckets per power of two (~12% resolution), counts
+// striped over several arrays by thread so desks on different cores rarely share a line.
+class LatencyHistogram {
+
+    private static final int SUB_BITS = 3, SUB = 1 << SUB_BITS;
+    private static final int BUCKETS = (64 - SUB_BITS) * SUB;
+
+    private final AtomicLongArray[] stripes;
+
+    LatencyHistogram() {
+        int n = Integer.highestOneBit(Math.max(1, Runtime.getRuntime().availableProcessors()) * 2 - 1);
+        stripes = new AtomicLongArray[n];
+        for (int i = 0; i < n; i++) stripes[i] = new AtomicLongArray(BUCKETS);
+    }
+
+    void record(long nanos) {
+        int stripe = (int) (Thread.currentThread().getId() * 0x9E3779B9L >>> 16) & (stripes.length - 1);
+        stripes[stripe].getAndIncrement(bucket(Math.max(0, nanos)));
+    }
+
+    // Lower bound of the bucket holding the q-th quantile, 0 when empty
+    long percentile(double q) {
+        long[] counts = new long[BUCKETS];
+        long total = 0;
+        for (AtomicLongArray s : stripes) {
+            for (int i = 0; i < BUCKETS; i++) {
+                long c = s.get(i);
+                counts[i] += c;
+                total += c;
+            }
+        }
+        long rank = (long) Math.ceil(q * total);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank && seen > 0) return lowerBound(i);
+        }
+        return 0;
+    }
+
+    private static int bucket(long v) {
+        if (v < SUB) return (int) v;
+        int exp = 63 - Long.numberOfLeadingZeros(v);
+        return (exp - SUB_BITS + 1) * SUB + (int) ((v >>> (exp - SUB_BITS)) & (SUB - 1));
+    }
+
+    private static long lowerBound(int bucket) {
+        if (bucket < SUB) return bucket;
+        int exp = bucket / SUB + SUB_BITS - 1;
+        return (long) (SUB + bucket % SUB) << (exp - SUB_BITS);
+    }
+}
+
+// Per-operation outcome counters (LongAdder, already striped) and latency histograms.
+// Every call is counted, but only a random 1-in-sampleEvery call is timed: a clock read
+// costs more than the rest of the instrumentation, and sampling leaves percentiles unbiased.
+class LibraryMetrics {
+
+    enum Op { STOCK, BORROW, RETURN, AVAILABILITY }
+
+    private final LongAdder[][] outcomes = new LongAdder[Op.values().length][LibraryResult.values().length];
+    private final LatencyHistogram[] latency = new LatencyHistogram[Op.values().length];
+    private final int sampleMask;
+
+    LibraryMetrics() {
+        this(16);
+    }
+
+    // sampleEvery is rounded up to a power of two; 1 times every call
+    LibraryMetrics(int sampleEvery) {
+        sampleMask = Integer.highestOneBit(Math.max(1, sampleEvery) * 2 - 1) - 1;
+        for (Op op : Op.values()) {
+            latency[op.ordinal()] = new LatencyHistogram();
+            for (LibraryResult r : LibraryResult.values()) {
+                outcomes[op.ordinal()][r.ordinal()] = new LongAdder();
+            }
+        }
+    }
+
+    // 0 means this call is not sampled
+    long startTimer() {
+        return (ThreadLocalRandom.current().nextInt() & sampleMask) == 0 ? System.nanoTime() : 0;
+    }
+
+    void record(Op op, LibraryResult result, long startNanos) {
+        outcomes[op.ordinal()][result.ordinal()].increment();
+        if (startNanos != 0) {
+            latency[op.ordinal()].record(System.nanoTime() - startNanos);
+        }
+    }
+
+    long count(Op op, LibraryResult result) {
+        return outcomes[op.ordinal()][result.ordinal()].sum();
+    }
+
+    long percentileNanos(Op op, double q) {
+        return latency[op.ordinal()].percentile(q);
+    }
+
+    // Prometheus-style text; only non-zero outcome counters are listed
+    String export() {
+        StringBuilder sb = new StringBuilder();
+        for (Op op : Op.values()) {
+            for (LibraryResult r : LibraryResult.values()) {
+                long c = count(op, r);
+                if (c > 0) {
+                    sb.append("library_ops_total{op=\"").append(op).append("\",result=\"").append(r)
+                            .append("\"} ").append(c).append('\n');
+                }
+            }
+            for (double q : new double[] { 0.5, 0.99, 0.999 }) {
+                sb.append("library_latency_nanos{op=\"").append(op).append("\",quantile=\"").append(q)
+                        .append("\"} ").append(percentileNanos(op, q)).append('\n');
+            }
+        }
+        return sb.toString();
+    }
+}
+
+// Instrumentation overhead on the cheapest service call: availableCopies without metrics,
+// with the default 1-in-16 sampling, and with every call timed. The difference to the
+// first column is what setMetrics costs per operation. Run with
+//   java questions.MetricsBenchmark [calls]
+class MetricsBenchmark {
+
+    public static void main(String[] args) {
+        int calls = args.length > 0 ? Integer.parseInt(args[0]) : 10_000_000;
+        LibraryService service = new LibraryService(new InMemoryBookRepository(), new DefaultBorrowPolicy());
+        String[] isbns = new String[4096];
+        for (int i = 0; i < isbns.length; i++) {
+            isbns[i] = "isbn-" + i;
+            service.addStock(new Book("Title " + i, "Author", isbns[i], "Fiction"), 3, null);
+        }
+
+        for (int round = 0; round < 5; round++) { // the first rounds are JIT warm-up
+            service.setMetrics(null);
+            double plain = time(service, isbns, calls);
+            service.setMetrics(new LibraryMetrics());
+            double sampled = time(service, isbns, calls);
+            service.setMetrics(new LibraryMetrics(1));
+            double timed = time(service, isbns, calls);
+            System.out.printf("round %d: none %.1f ns, sampled 1/16 %.1f ns (+%.1f), every call %.1f ns (+%.1f)%n",
+                    round, plain, sampled, sampled - plain, timed, timed - plain);
+        }
+    }
+
+    private static double time(LibraryService service, String[] isbns, int calls) {
+        long sum = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < calls; i++) {
+            sum += service.availableCopies(isbns[i & (isbns.length - 1)]);
+        }
+        long nanos = System.nanoTime() - start;
+        if (sum < 0) System.out.println(sum); // keeps the loop from being dropped
+        return (double) nanos / calls;
+    }
+}
+
+// ====================== POPULARITY ==============================
+
+// "Most borrowed this week" in fixed memory. The window is a ring of time buckets; each
+// bucket has a count-min sketch (lock-free increments) and a small candidate set of its
+// heaviest ISBNs. A candidate set is only locked when a borrow's estimate could enter it,
+// which is rare once it has warmed up. topK sums the sketches of the live buckets for the
+// union of their candidates, so a query touches a few hundred counters.
+class PopularityTracker implements InventoryObserver {
+
+    static final class Entry {
+        final String isbn;
+        final long borrows; // estimate; count-min never under-counts
+
+        Entry(String isbn, long borrows) {
+            this.isbn = isbn;
+            this.borrows = borrows;
+        }
+
+        @Override
+        public String toString() {
+            return isbn + "=" + borrows;
+        }
+    }
+
+    private static final int DEPTH = 4;
+
+    private final class Bucket {
+        final AtomicIntegerArray counts = new AtomicIntegerArray(DEPTH * width);
+        final Map<String, Integer> candidates = new HashMap<>();
+        volatile int admitAbove = 0; // smallest candidate estimate once the set is full
+        long epoch;
+
+        int add(String isbn) {
+            int h = isbn.hashCode(), min = Integer.MAX_VALUE;
+            for (int d = 0; d < DEPTH; d++) {
+                min = Math.min(min, counts.incrementAndGet(d * width + index(h, d)));
+            }
+            return min;
+        }
+
+        int estimate(String isbn) {
+            int h = isbn.hashCode(), min = Integer.MAX_VALUE;
+            for (int d = 0; d < DEPTH; d++) {
+                min = Math.min(min, counts.get(d * width + index(h, d)));
+            }
+            return min;
+        }
+
+        synchronized void offer(String isbn, int estimate) {
+            if (candidates.containsKey(isbn) || candidates.size() < candidateLimit) {
+                candidates.put(isbn, estimate);
+            } else {
+                String weakest = null;
+                int weakestCount = Integer.MAX_VALUE;
+                for (Map.Entry<String, Integer> e : candidates.entrySet()) {
+                    if (e.getValue() < weakestCount) {
+                        weakest = e.getKey();
+                        weakestCount = e.getValue();
+                    }
+                }
+                if (estimate <= weakestCount) return;
+                candidates.remove(weakest);
+                candidates.put(isbn, estimate);
+            }
+            if (candidates.size() == candidateLimit) {
+                int min = Integer.MAX_VALUE;
+                for (int v : candidates.values()) min = Math.min(min, v);
+                admitAbove = min;
+            }
+        }
+
+        synchronized void reset(long newEpoch) {
+            for (int i = 0; i < counts.length(); i++) counts.set(i, 0);
+            candidates.clear();
+            admitAbove = 0;
+            epoch = newEpoch;
+        }
+    }
+
+    private final int k;
+    private final int width;
+    private final int candidateLimit;
+    private final long bucketMillis;
+    private final Bucket[] ring;
+    private final LongSupplier clock;
+    private volatile long currentEpoch;
+
+    // e.g. (10, 7 x one day) for "top 10 this week"
+    PopularityTracker(int k, int buckets, long bucketMillis, LongSupplier clock) {
+        this.k = k;
+        this.width = Integer.highestOneBit(Math.max(64, k * 256) - 1) << 1;
+        this.candidateLimit = k * 4;
+        this.bucketMillis = bucketMillis;
+        this.clock = clock;
+        this.ring = new Bucket[buckets];
+        this.currentEpoch = clock.getAsLong() / bucketMillis;
+        for (int i = 0; i < buckets; i++) {
+            ring[i] = new Bucket();
+            ring[i].epoch = currentEpoch - ((currentEpoch - i) % buckets + buckets) % buckets;
+        }
+    }
+
+    @Override
+    public void onBorrowed(Book book, User user) {
+        record(book.isbn);
+    }
+
+    void record(String isbn) {
+        Bucket bucket = current();
+        int estimate = bucket.add(isbn);
+        if (estimate > bucket.admitAbove) {
+            bucket.offer(isbn, estimate);
+        }
+    }
+
+    List<Entry> topK() {
+        current();
+        long oldest = currentEpoch - ring.length + 1;
+        Set<String> candidates = new HashSet<>();
+        for (Bucket b : ring) {
+            synchronized (b) {
+                if (b.epoch >= oldest) candidates.addAll(b.candidates.keySet());
+            }
+        }
+
+        List<Entry> ranked = new ArrayList<>(candidates.size());
+        for (String isbn : candidates) {
+            long total = 0;
+            for (Bucket b : ring) {
+                if (b.epoch >= oldest) total += b.estimate(isbn);
+            }
+            ranked.add(new Entry(isbn, total));
+        }
+        ranked.sort((a, b) -> Long.compare(b.borrows, a.borrows));
+        return ranked.subList(0, Math.min(k, ranked.size()));
+    }
+
+    // Bucket for "now", recycling buckets that have slid out of the window
+    private Bucket current() {
+        long epoch = clock.getAsLong() / bucketMillis;
+        if (epoch != currentEpoch) {
+            synchronized (this) {
+                if (epoch > currentEpoch) {
+                    for (long e = Math.max(currentEpoch + 1, epoch - ring.length + 1); e <= epoch; e++) {
+                        ring[(int) (e % ring.length)].reset(e);
+                    }
+                    currentEpoch = epoch;
+                }
+            }
+        }
+        return ring[(int) (epoch % ring.length)];
+    }
+
+    private int index(int hash, int row) {
+        int h = (hash ^ (row * 0x9E3779B9)) * 0x85EBCA6B;
+        return (h ^ (h >>> 13)) & (width - 1);
+    }
+}
+
+// ====================== RECOMMENDATIONS =========================
+
+// "Patrons who borrowed this also borrowed...": an incrementally maintained co-borrow
+// graph. A borrow links the ISBN with the user's last few distinct borrows. Each node keeps
+// at most maxNeighbors weighted edges (space-saving: a newcomer replaces the weakest edge
+// and inherits its weight), and republishes its top-N list on every change, so a lookup is
+// a single volatile read.
+class CoBorrowGraph implements InventoryObserver {
+
+    private final class Node {
+        final String[] neighbors = new String[maxNeighbors];
+        final int[] weights = new int[maxNeighbors];
+        final Map<String, Integer> slots = new HashMap<>();
+        int size;
+        volatile List<String> top = List.of();
+
+        synchronized void bump(String other) {
+            Integer slot = slots.get(other);
+            if (slot != null) {
+                weights[slot]++;
+            } else if (size < maxNeighbors) {
+                slots.put(other, size);
+                neighbors[size] = other;
+                weights[size++] = 1;
+            } else {
+                int weakest = 0;
+                for (int i = 1; i < size; i++) {
+                    if (weights[i] < weights[weakest]) weakest = i;
+                }
+                slots.remove(neighbors[weakest]);
+                slots.put(other, weakest);
+                neighbors[weakest] = other;
+                weights[weakest]++;
+            }
+            publish();
+        }
+
+        // Halves every weight and drops the edges that fall below minWeight
+        synchronized void decay(int minWeight) {
+            int kept = 0;
+            slots.clear();
+            for (int i = 0; i < size; i++) {
+                int w = weights[i] >> 1;
+                if (w < minWeight) continue;
+                neighbors[kept] = neighbors[i];
+                weights[kept] = w;
+                slots.put(neighbors[kept], kept++);
+            }
+            for (int i = kept; i < size; i++) neighbors[i] = null;
+            size = kept;
+            publish();
+        }
+
+        private void publish() {
+            Integer[] order = new Integer[size];
+            for (int i = 0; i < size; i++) order[i] = i;
+            Arrays.sort(order, (a, b) -> Integer.compare(weights[b], weights[a]));
+            String[] best = new String[Math.min(topN, size)];
+            for (int i = 0; i < best.length; i++) best[i] = neighbors[order[i]];
+            top = List.of(best);
+        }
+    }
+
+    private final int historyLimit;
+    private final int maxNeighbors;
+    private final int topN;
+    private final Map<String, Node> nodes = new ConcurrentHashMap<>();
+    private final Map<String, Deque<String>> history = new ConcurrentHashMap<>();
+
+    CoBorrowGraph(int historyLimit, int maxNeighbors, int topN) {
+        this.historyLimit = historyLimit;
+        this.maxNeighbors = maxNeighbors;
+        this.topN = topN;
+    }
+
+    @Override
+    public void onBorrowed(Book book, User user) {
+        record(user.name, book.isbn);
+    }
+
+    void record(String userName, String isbn) {
+        Deque<String> recent = history.computeIfAbsent(userName, k -> new ArrayDeque<>());
+        String[] others;
+        synchronized (recent) {
+            if (recent.remove(isbn)) { // re-borrow: refresh recency, no new evidence
+                recent.addLast(isbn);
+                return;
+            }
+            others = recent.toArray(new String[0]);
+            recent.addLast(isbn);
+            if (recent.size() > historyLimit) recent.removeFirst();
+        }
+
+        Node node = nodes.computeIfAbsent(isbn, k -> new Node());
+        for (String other : others) {
+            node.bump(other);
+            nodes.computeIfAbsent(other, k -> new Node()).bump(isbn);
+        }
+    }
+
+    // Top-N related ISBNs, strongest first; precomputed, so this is one map lookup
+    List<String> related(String isbn) {
+        Node node = nodes.get(isbn);
+        return node == null ? List.of() : node.top;
+    }
+
+    // Periodic maintenance: ages all edges and prunes the weak ones
+    void decayAndPrune(int minWeight) {
+        for (Node node : nodes.values()) node.decay(minWeight);
+    }
+}
+
+// ====================== DURABILITY ==============================
+
+// Append-only log of inventory mutations. Records are [length][crc32][payload] so a torn
+// tail from a crash is detected and dropped on recovery. Group commit: the first writer to
+// find no flush in progress becomes leader and writes + fsyncs everything queued so far;
+// the rest just wait for the durable sequence to pass theirs.
+class WriteAheadLog implements InventoryObserver, Closeable {
+
+    private static final byte STOCK = 1, BORROW = 2, RETURN = 3;
+
+    private final FileChannel channel;
+    private final Object lock = new Object();
+    private ByteArrayOutputStream pending = new ByteArrayOutputStream();
+    private long appendedSeq = 0;
+    private long durableSeq = 0;
+    private boolean flushing = false;
+    private volatile IOException failure;
+
+    private long syncs = 0;
+    private long records = 0;
+
+    WriteAheadLog(Path file) throws IOException {
+        channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND);
+    }
+
+    @Override
+    public void onStockAdded(Book book, int count) {
+        append(out -> {
+            out.writeByte(STOCK);
+            out.writeUTF(book.isbn);
+            out.writeInt(count);
+            out.writeUTF(book.title);
+            out.writeUTF(book.author);
+            out.writeUTF(book.category);
+        });
+    }
+
+    @Override
+    public void onBorrowed(Book book, User user) {
+        append(out -> {
+            out.writeByte(BORROW);
+            out.writeUTF(book.isbn);
+        });
+    }
+
+    @Override
+    public void onReturned(Book book, User user) {
+        append(out -> {
+            out.writeByte(RETURN);
+            out.writeUTF(book.isbn);
+        });
+    }
+
+    // After a failed flush nothing more can be made durable, so the service stops mutating
+    // rather than drift from the file. The failed batch's callers got the exception; a
+    // restart recovers from what did reach the disk.
+    @Override
+    public void beforeMutation() {
+        IOException e = failure;
+        if (e != null) throw new UncheckedIOException(e);
+    }
+
+    // Records written per fsync; 1.0 means no batching happened
+    double recordsPerSync() {
+        synchronized (lock) {
+            return syncs == 0 ? 0 : (double) records / syncs;
+        }
+    }
+
+    private interface RecordWriter {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    private void append(RecordWriter writer) {
+        ByteArrayOutputStream payload = new ByteArrayOutputStream(64);
+        try {
+            writer.write(new DataOutputStream(payload));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        byte[] bytes = payload.toByteArray();
+        CRC32 crc = new CRC32();
+        crc.update(bytes);
+
+        long seq;
+        synchronized (lock) {
+            DataOutputStream out = new DataOutputStream(pending);
+            try {
+                out.writeInt(bytes.length);
+                out.writeInt((int) crc.getValue());
+                out.write(bytes);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            seq = ++appendedSeq;
+        }
+        awaitDurable(seq);
+    }
+
+    private void awaitDurable(long seq) {
+        while (true) {
+            byte[] batch;
+            long upTo;
+            synchronized (lock) {
+                while (durableSeq < seq && flushing && failure == null) {
+                    try {
+                        lock.wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new IllegalStateException("Interrupted waiting for log flush", e);
+                    }
+                }
+                if (failure != null) throw new UncheckedIOException(failure);
+                if (durableSeq >= seq) return;
+
+                flushing = true;
+                batch = pending.toByteArray();
+                pending = new ByteArrayOutputStream(Math.max(256, batch.length));
+                upTo = appendedSeq;
+            }
+
+            IOException error = null;
+            try {
+                ByteBuffer buf = ByteBuffer.wrap(batch);
+                while (buf.hasRemaining()) channel.write(buf);
+                channel.force(false);
+            } catch (IOException e) {
+                error = e;
+            }
+
+            synchronized (lock) {
+                flushing = false;
+                if (error != null) {
+                    failure = error; // records of this batch are lost, fail everyone from here on
+                } else {
+                    records += upTo - durableSeq;
+                    syncs++;
+                    durableSeq = upTo;
+                }
+                lock.notifyAll();
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    // Replays the log into repo. Every record is a counter delta, so the order in which
+    // concurrent desks reached the log does not change the recovered state.
+    static int recover(Path file, IBookRepository repo) throws IOException {
+        if (!Files.exists(file)) return 0;
+
+        int applied = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            while (true) {
+                byte[] bytes;
+                try {
+                    int length = in.readInt();
+                    int checksum = in.readInt();
+                    bytes = new byte[length];
+                    in.readFully(bytes);
+                    CRC32 crc = new CRC32();
+                    crc.update(bytes);
+                    if ((int) crc.getValue() != checksum) break;
+                } catch (EOFException torn) {
+                    break;
+                }
+
+                DataInputStream rec = new DataInputStream(new ByteArrayInputStream(bytes));
+                byte type = rec.readByte();
+                String isbn = rec.readUTF();
+                if (type == STOCK) {
+                    int count = rec.readInt();
+                    Book existing = repo.getBook(isbn);
+                    if (existing == null || existing.title == null) {
+                        Book b = new Book(rec.readUTF(), rec.readUTF(), isbn, rec.readUTF());
+                        if (existing != null) {
+                            long counts = existing.counts();
+                            b.addCopies(Book.totalOf(counts), Book.availableOf(counts));
+                        }
+                        repo.addBook(b);
+                    }
+                    repo.getBook(isbn).addCopies(count, count);
+                } else if (type == BORROW) {
+                    // Stock is borrowable before its observers run, so a borrow may be logged
+                    // ahead of its STOCK record: start a placeholder that STOCK fills in
+                    Book b = repo.getBook(isbn);
+                    if (b == null) {
+                        repo.addBook(new Book(null, -1, isbn, -1));
+                        b = repo.getBook(isbn);
+                    }
+                    b.addCopies(0, -1);
+                } else if (type == RETURN) {
+                    if (!repo.exists(isbn)) {
+                        repo.addBook(new Book("Unknown", "Unknown", isbn, "Misc"));
+                    }
+                    repo.getBook(isbn).addCopies(1, 1);
+                }
+                applied++;
+            }
+        }
+        return applied;
+    }
+}
+
+// Borrow/return throughput of desk threads without a log and with a WriteAheadLog, and how
+// many records each fsync carried. More desks give the group commit more to batch; with
+// one desk every record is its own fsync. The log goes to the temp directory, so run it
+// on the disk that matters. Run with
+//   java questions.WalBenchmark [desks] [seconds]
+class WalBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int desks = args.length > 0 ? Integer.parseInt(args[0]) : 16;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+
+        for (int round = 0; round < 2; round++) { // the first round is JIT warm-up
+            System.out.printf("round %d, %d desks: no log %.0f ops/s%n", round, desks, run(desks, seconds, null));
+            Path file = Files.createTempFile("library", ".wal");
+            try (WriteAheadLog wal = new WriteAheadLog(file)) {
+                double opsPerSecond = run(desks, seconds, wal);
+                System.out.printf("round %d, %d desks: WAL     %.0f ops/s, %.1f records/fsync, %d KB%n", round,
+                        desks, opsPerSecond, wal.recordsPerSync(), Files.size(file) / 1024);
+            } finally {
+                Files.deleteIfExists(file);
+            }
+        }
+    }
+
+    // Each desk borrows and returns a copy of its own title, so desks never contend on a
+    // counter and the log is the only shared point
+    private static double run(int desks, int seconds, WriteAheadLog wal) throws InterruptedException {
+        LibraryService service = new LibraryService(new InMemoryBookRepository(), new DefaultBorrowPolicy());
+        for (int d = 0; d < desks; d++) {
+            service.addStock(new Book("Title " + d, "Author", "desk-" + d, "Fiction"), 1, null);
+        }
+        if (wal != null) service.addObserver(wal);
+
+        LongAdder ops = new LongAdder();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+        Thread[] threads = new Thread[desks];
+        for (int d = 0; d < desks; d++) {
+            String isbn = "desk-" + d;
+            User user = new User("patron-" + d);
+            threads[d] = new Thread(() -> {
+                Receipt receipt = new Receipt();
+                while (System.nanoTime() < deadline) {
+                    service.borrow(isbn, user, receipt);
+                    service.returnCopy(isbn, user, receipt);
+                    ops.add(2);
+                }
+            });
+            threads[d].start();
+        }
+        for (Thread t : threads) t.join();
+        return ops.sum() / (double) seconds;
+    }
+}
+
+// ====================== CACHING =================================
+
+// 4-bit count-min sketch (4 rows) that halves every counter after 10 x capacity samples,
+// so the popularity it reports follows recent traffic.
+class FrequencySketch {
+
+    private final byte[][] rows = new byte[4][];
+    private final int mask;
+    private final int sampleSize;
+    private int additions;
+
+    FrequencySketch(int capacity) {
+        int width = Integer.highestOneBit(Math.max(16, capacity) * 2 - 1);
+        for (int i = 0; i < rows.length; i++) rows[i] = new byte[width];
+        mask = width - 1;
+        sampleSize = 10 * Math.max(16, capacity);
+    }
+
+    void increment(int hash) {
+        boolean added = false;
+        for (int i = 0; i < rows.length; i++) {
+            int j = index(hash, i);
+            if (rows[i][j] < 15) {
+                rows[i][j]++;
+                added = true;
+            }
+        }
+        if (added && ++additions == sampleSize) {
+            for (byte[] row : rows) {
+                for (int j = 0; j < row.length; j++) row[j] >>= 1;
+            }
+            additions /= 2;
+        }
+    }
+
+    int frequency(int hash) {
+        int min = 15;
+        for (int i = 0; i < rows.length; i++) min = Math.min(min, rows[i][index(hash, i)]);
+        return min;
+    }
+
+    private int index(int hash, int row) {
+        int h = (hash ^ (row * 0x9E3779B9)) * 0x85EBCA6B;
+        return (h ^ (h >>> 15)) & mask;
+    }
+}
+
+// Read-through cache in front of a slow repository, W-TinyLFU style: new books enter a
+// small LRU window, and a book leaving the window only displaces a main-area book if the
+// sketch says it is requested more often. Main is a segmented LRU (probation/protected),
+// so one-off scans cannot flush the popular titles.
+// Caches the Book objects the inner repository hands out, so their counter updates must
+// reach the store (true for the views and decoded objects the repositories here return).
+class CachingBookRepository implements IBookRepository {
+
+    private enum Area { WINDOW, PROBATION, PROTECTED }
+
+    private static final class Node {
+        final String isbn;
+        final Book book;
+        Area area;
+        Node prev, next;
+
+        Node(String isbn, Book book) {
+            this.isbn = isbn;
+            this.book = book;
+        }
+    }
+
+    // Intrusive LRU list, head = most recent
+    private static final class LruList {
+        final Node head = new Node(null, null);
+        int size;
+
+        LruList() {
+            head.prev = head.next = head;
+        }
+
+        void addFirst(Node n) {
+            n.next = head.next;
+            n.prev = head;
+            head.next.prev = n;
+            head.next = n;
+            size++;
+        }
+
+        void remove(Node n) {
+            n.prev.next = n.next;
+            n.next.prev = n.prev;
+            size--;
+        }
+
+        Node last() {
+            return head.prev == head ? null : head.prev;
+        }
+    }
+
+    private final IBookRepository inner;
+    private final Map<String, Node> data = new ConcurrentHashMap<>();
+    private final FrequencySketch sketch;
+    private final ReentrantLock policyLock = new ReentrantLock();
+    private final LruList window = new LruList(), probation = new LruList(), protectedQueue = new LruList();
+    private final int windowMax, mainMax, protectedMax;
+    private final LongAdder hits = new LongAdder(), misses = new LongAdder();
+    // Bumped by every invalidate, striped by ISBN hash. A miss admits what it read only if its
+    // stripe did not move meanwhile, so a book replaced during the load is never cached.
+    private final AtomicIntegerArray generations = new AtomicIntegerArray(256);
+
+    CachingBookRepository(IBookRepository inner, int maxBooks) {
+        this.inner = inner;
+        this.windowMax = Math.max(1, maxBooks / 100);
+        this.mainMax = Math.max(1, maxBooks - windowMax);
+        this.protectedMax = (int) (mainMax * 0.8);
+        this.sketch = new FrequencySketch(maxBooks);
+    }
+
+    @Override
+    public Book getBook(String isbn) {
+        Node n = data.get(isbn);
+        if (n != null) {
+            hits.increment();
+            // Lossy on purpose: under contention a hit skips the bookkeeping instead of waiting
+            if (policyLock.tryLock()) {
+                try {
+                    sketch.increment(isbn.hashCode());
+                    onHit(n);
+                } finally {
+                    policyLock.unlock();
+                }
+            }
+            return n.book;
+        }
+
+        misses.increment();
+        int stripe = isbn.hashCode() & (generations.length() - 1);
+        int generation = generations.get(stripe);
+        Book b = inner.getBook(isbn);
+        policyLock.lock();
+        try {
+            sketch.increment(isbn.hashCode());
+            if (b != null && !data.containsKey(isbn) && generations.get(stripe) == generation) {
+                admit(new Node(isbn, b));
+            }
+        } finally {
+            policyLock.unlock();
+        }
+        return b;
+    }
+
+    // Write-through: the store is updated first, then the stale cached object (if any) dropped
+    @Override
+    public void addBook(Book b) {
+        inner.addBook(b);
+        invalidate(b.isbn);
+    }
+
+    @Override
+    public boolean exists(String isbn) {
+        return data.containsKey(isbn) || inner.exists(isbn);
+    }
+
+    @Override
+    public void forEachBook(Consumer<Book> action) {
+        inner.forEachBook(action);
+    }
+
+    double hitRatio() {
+        long h = hits.sum(), total = h + misses.sum();
+        return total == 0 ? 0 : (double) h / total;
+    }
+
+    long hits() {
+        return hits.sum();
+    }
+
+    long misses() {
+        return misses.sum();
+    }
+
+    int size() {
+        return data.size();
+    }
+
+    private void invalidate(String isbn) {
+        policyLock.lock();
+        try {
+            generations.incrementAndGet(isbn.hashCode() & (generations.length() - 1));
+            Node n = data.remove(isbn);
+            if (n != null) queueOf(n.area).remove(n);
+        } finally {
+            policyLock.unlock();
+        }
+    }
+
+    private void onHit(Node n) {
+        if (data.get(n.isbn) != n) return; // evicted or replaced meanwhile
+        if (n.area == Area.PROBATION) {
+            probation.remove(n);
+            n.area = Area.PROTECTED;
+            protectedQueue.addFirst(n);
+            if (protectedQueue.size > protectedMax) {
+                Node demoted = protectedQueue.last();
+                protectedQueue.remove(demoted);
+                demoted.area = Area.PROBATION;
+                probation.addFirst(demoted);
+            }
+        } else {
+            LruList q = queueOf(n.area);
+            q.remove(n);
+            q.addFirst(n);
+        }
+    }
+
+    private void admit(Node n) {
+        n.area = Area.WINDOW;
+        window.addFirst(n);
+        data.put(n.isbn, n);
+        if (window.size <= windowMax) return;
+
+        Node candidate = window.last();
+        window.remove(candidate);
+        if (probation.size + protectedQueue.size < mainMax) {
+            candidate.area = Area.PROBATION;
+            probation.addFirst(candidate);
+            return;
+        }
+
+        Node victim = probation.last() != null ? probation.last() : protectedQueue.last();
+        if (sketch.frequency(candidate.isbn.hashCode()) > sketch.frequency(victim.isbn.hashCode())) {
+            queueOf(victim.area).remove(victim);
+            data.remove(victim.isbn);
+            candidate.area = Area.PROBATION;
+            probation.addFirst(candidate);
+        } else {
+            data.remove(candidate.isbn);
+        }
+    }
+
+    private LruList queueOf(Area area) {
+        return area == Area.WINDOW ? window : area == Area.PROBATION ? probation : protectedQueue;
+    }
+}
+
+// ====================== SHARDING ================================
+
+class CatalogStats {
+    long titles;
+    long totalCopies;
+    long availableCopies;
+
+    CatalogStats add(Book b) {
+        long counts = b.counts();
+        titles++;
+        totalCopies += Book.totalOf(counts);
+        availableCopies += Book.availableOf(counts);
+        return this;
+    }
+
+    CatalogStats merge(CatalogStats other) {
+        titles += other.titles;
+        totalCopies += other.totalCopies;
+        availableCopies += other.availableCopies;
+        return this;
+    }
+}
+
+// Partitions the catalog over independent repositories by ISBN hash. Point operations touch
+// exactly one shard; catalog-wide work fans out one fork-join task per shard.
+class ShardedBookRepository implements IBookRepository {
+
+    private final IBookRepository[] shards;
+    private final ForkJoinPool pool;
+
+    ShardedBookRepository(int shardCount) {
+        this(shardCount, InMemoryBookRepository::new, ForkJoinPool.commonPool());
+    }
+
+    ShardedBookRepository(int shardCount, Supplier<IBookRepository> factory, ForkJoinPool pool) {
+        if (shardCount <= 0) throw new IllegalArgumentException("shardCount must be positive");
+        this.shards = new IBookRepository[shardCount];
+        for (int i = 0; i < shardCount; i++) shards[i] = factory.get();
+        this.pool = pool;
+    }
+
+    @Override
+    public void addBook(Book b) {
+        shardFor(b.isbn).addBook(b);
+    }
+
+    @Override
+    public Book addIfAbsent(Book b) {
+        return shardFor(b.isbn).addIfAbsent(b);
+    }
+
+    @Override
+    public Book getBook(String isbn) {
+        return shardFor(isbn).getBook(isbn);
+    }
+
+    @Override
+    public boolean exists(String isbn) {
+        return shardFor(isbn).exists(isbn);
+    }
+
+    @Override
+    public int availableCopies(String isbn) {
+        return shardFor(isbn).availableCopies(isbn);
+    }
+
+    // One batch call per shard touched
+    @Override
+    public void availableCopies(String[] isbns, int[] out) {
+        int[] shardOf = new int[isbns.length];
+        int[] perShard = new int[shards.length];
+        for (int i = 0; i < isbns.length; i++) {
+            shardOf[i] = shardIndex(isbns[i]);
+            perShard[shardOf[i]]++;
+        }
+        for (int s = 0; s < shards.length; s++) {
+            if (perShard[s] == 0) continue;
+            String[] batch = new String[perShard[s]];
+            int[] positions = new int[perShard[s]];
+            for (int i = 0, k = 0; i < isbns.length; i++) {
+                if (shardOf[i] == s) {
+                    positions[k] = i;
+                    batch[k++] = isbns[i];
+                }
+            }
+            int[] counts = new int[batch.length];
+            shards[s].availableCopies(batch, counts);
+            for (int k = 0; k < batch.length; k++) out[positions[k]] = counts[k];
+        }
+    }
+
+    @Override
+    public void forEachBook(Consumer<Book> action) {
+        for (IBookRepository shard : shards) shard.forEachBook(action);
+    }
+
+    int shardCount() {
+        return shards.length;
+    }
+
+    IBookRepository shard(int index) {
+        return shards[index];
+    }
+
+    // Hyphens and spaces are skipped so every spelling of an ISBN lands on the same shard
+    int shardIndex(String isbn) {
+        int h = 0;
+        for (int i = 0; i < isbn.length(); i++) {
+            char c = isbn.charAt(i);
+            if (c != '-' && c != ' ') h = 31 * h + c;
+        }
+        h ^= h >>> 16;
+        return Math.floorMod(h * 0x9E3779B9, shards.length);
+    }
+
+    // action runs concurrently on different shards and must be thread-safe
+    void parallelForEach(Consumer<Book> action) {
+        fanOut(shard -> {
+            shard.forEachBook(action);
+            return null;
+        }, (a, b) -> null);
+    }
+
+    CatalogStats stats() {
+        return fanOut(shard -> {
+            CatalogStats s = new CatalogStats();
+            shard.forEachBook(s::add);
+            return s;
+        }, CatalogStats::merge);
+    }
+
+    <R> R fanOut(Function<IBookRepository, R> perShard, BinaryOperator<R> combine) {
+        return pool.invoke(new ShardTask<>(0, shards.length, perShard, combine));
+    }
+
+    private IBookRepository shardFor(String isbn) {
+        return shards[shardIndex(isbn)];
+    }
+
+    private final class ShardTask<R> extends RecursiveTask<R> {
+        private static final long serialVersionUID = 1L;
+
+        private final int from, to;
+        private final Function<IBookRepository, R> perShard;
+        private final BinaryOperator<R> combine;
+
+        ShardTask(int from, int to, Function<IBookRepository, R> perShard, BinaryOperator<R> combine) {
+            this.from = from;
+            this.to = to;
+            this.perShard = perShard;
+            this.combine = combine;
+        }
+
+        @Override
+        protected R compute() {
+            if (to - from == 1) return perShard.apply(shards[from]);
+            int mid = (from + to) >>> 1;
+            ShardTask<R> left = new ShardTask<>(from, mid, perShard, combine);
+            left.fork();
+            R right = new ShardTask<>(mid, to, perShard, combine).compute();
+            return combine.apply(left.join(), right);
+        }
+    }
+}
+
+// ====================== BULK IMPORT =============================
+
+// Streams a catalog file (isbn,title,author,category,copies per line; an optional header
+// row with exactly those names; RFC 4180 quoting) into a repository. The reader only ever
+// holds a bounded number of chunks in memory, chunks are parsed in parallel, and each
+// chunk is merged with one mergeAll per shard. Goes straight to the repository, so service observers (WAL, CDC...)
+// do not see imported stock; take a snapshot afterwards if it must survive a restart.
+class CatalogImporter {
+
+    static final class Result {
+        final long rows;
+        final long rejected;
+        final long nanos;
+
+        Result(long rows, long rejected, long nanos) {
+            this.rows = rows;
+            this.rejected = rejected;
+            this.nanos = nanos;
+        }
+
+        double rowsPerSecond() {
+            return nanos == 0 ? 0 : rows * 1e9 / nanos;
+        }
+    }
+
+    private static final String[] HEADER = { "isbn", "title", "author", "category", "copies" };
+
+    private final IBookRepository target;
+    private final int threads;
+    private final int chunkLines;
+    private final char delimiter;
+
+    CatalogImporter(IBookRepository target, int threads, int chunkLines, char delimiter) {
+        this.target = target;
+        this.threads = threads;
+        this.chunkLines = chunkLines;
+        this.delimiter = delimiter;
+    }
+
+    CatalogImporter(IBookRepository target) {
+        this(target, Runtime.getRuntime().availableProcessors(), 8192, ',');
+    }
+
+    Result importFile(Path file) throws IOException {
+        long start = System.nanoTime();
+        LongAdder rows = new LongAdder(), rejected = new LongAdder();
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        Semaphore inFlight = new Semaphore(threads * 2);
+        List<Future<?>> pending = new ArrayList<>();
+
+        try (BufferedReader in = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String line = in.readLine();
+            if (line != null && isHeader(line)) {
+                line = in.readLine();
+            }
+            while (line != null) {
+                List<String> chunk = new ArrayList<>(chunkLines);
+                for (; line != null && chunk.size() < chunkLines; line = in.readLine()) {
+                    chunk.add(line);
+                }
+                inFlight.acquireUninterruptibly();
+                pending.add(pool.submit(() -> {
+                    try {
+                        load(chunk, rows, rejected);
+                    } finally {
+                        inFlight.release();
+                    }
+                }));
+                for (Iterator<Future<?>> it = pending.iterator(); it.hasNext(); ) {
+                    Future<?> f = it.next();
+                    if (f.isDone()) {
+                        f.get(); // surfaces a failed chunk instead of dropping it
+                        it.remove();
+                    }
+                }
+            }
+            for (Future<?> f : pending) {
+                f.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Import interrupted", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Import failed", e.getCause());
+        } finally {
+            pool.shutdownNow();
+        }
+        return new Result(rows.sum(), rejected.sum(), System.nanoTime() - start);
+    }
+
+    private void load(List<String> lines, LongAdder rows, LongAdder rejected) {
+        ShardedBookRepository sharded = target instanceof ShardedBookRepository ? (ShardedBookRepository) target : null;
+        List<List<Book>> groups = new ArrayList<>();
+        for (int i = 0, n = sharded == null ? 1 : sharded.shardCount(); i < n; i++) {
+            groups.add(new ArrayList<>());
+        }
+
+        for (String line : lines) {
+            if (line.isBlank()) continue;
+            Book b = parse(line);
+            if (b == null) {
+                rejected.increment();
+                continue;
+            }
+            groups.get(sharded == null ? 0 : sharded.shardIndex(b.isbn)).add(b);
+            rows.increment();
+        }
+
+        for (int i = 0; i < groups.size(); i++) {
+            if (groups.get(i).isEmpty()) continue;
+            IBookRepository repo = sharded == null ? target : sharded.shard(i);
+            repo.mergeAll(groups.get(i));
+        }
+    }
+
+    // Only the exact column names count as a header; a first row whose id merely starts
+    // with "ISBN" is data
+    private boolean isHeader(String line) {
+        List<String> fields = split(line);
+        if (fields.size() != HEADER.length) return false;
+        for (int i = 0; i < HEADER.length; i++) {
+            if (!fields.get(i).equalsIgnoreCase(HEADER[i])) return false;
+        }
+        return true;
+    }
+
+    private Book parse(String line) {
+        List<String> fields = split(line);
+        if (fields.size() != 5 || fields.get(0).isEmpty()) return null;
+        int copies;
+        try {
+            copies = Integer.parseInt(fields.get(4));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        if (copies < 0) return null;
+
+        Book b = new Book(fields.get(1), fields.get(2), fields.get(0), fields.get(3));
+        b.addCopies(copies, copies);
+        return b;
+    }
+
+    private List<String> split(String line) {
+        List<String> fields = new ArrayList<>(5);
+        StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (quoted) {
+                if (c == '"' && i + 1 < line.length() && line.charAt(i + 1) == '"') {
+                    field.append('"');
+                    i++;
+                } else if (c == '"') {
+                    quoted = false;
+                } else {
+                    field.append(c);
+                }
+            } else if (c == '"') {
+                quoted = true;
+            } else if (c == delimiter) {
+                fields.add(field.toString().trim());
+                field.setLength(0);
+            } else {
+                field.append(c);
+            }
+        }
+        fields.add(field.toString().trim());
+        return fields;
+    }
+}
+
+// Import throughput: writes a catalog of unique ISBNs to a temp file and imports it into
+// a fresh repository a few times. Each round reports rows/sec from CatalogImporter.Result,
+// the last one after JIT warm-up. Run with
+//   java -Xmx2g questions.CatalogImportBenchmark [rows] [threads] [inmemory|sharded|primitive]
+class CatalogImportBenchmark {
+
+    public static void main(String[] args) throws IOException {
+        int rows = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        int threads = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+        String target = args.length > 2 ? args[2] : "inmemory";
+
+        Path file = Files.createTempFile("catalog", ".csv");
+        try {
+            try (BufferedWriter out = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+                out.write("isbn,title,author,category,copies\n");
+                for (int i = 0; i < rows; i++) {
+                    out.write(String.format("978%010d,\"Title %d, vol. %d\",Author %d,Category %d,%d%n",
+                            i, i % 500, i % 7, i % 97, i % 13, 1 + i % 5));
+                }
+            }
+            System.out.printf("%d rows, %.1f MB, %d threads, %s%n", rows, Files.size(file) / 1e6, threads, target);
+
+            for (int round = 0; round < 3; round++) {
+                IBookRepository repo = target.equals("sharded") ? new ShardedBookRepository(threads)
+                        : target.equals("primitive") ? new PrimitiveBookRepository()
+                        : new InMemoryBookRepository();
+                CatalogImporter.Result result = new CatalogImporter(repo, threads, 8192, ',').importFile(file);
+                System.out.printf("round %d: %d rows, %d rejected, %.0f ms, %.0f rows/s%n", round,
+                        result.rows, result.rejected, result.nanos / 1e6, result.rowsPerSecond());
+            }
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+}
+
+// ====================== EVENT SOURCING ==========================
+
+// Immutable record of one inventory mutation; applying the full sequence to an empty
+// repository reproduces the live one
+abstract class InventoryEvent {
+    final long seq;
+    final long timestamp;
+    final String isbn;
+
+    InventoryEvent(long seq, long timestamp, String isbn) {
+        this.seq = seq;
+        this.timestamp = timestamp;
+        this.isbn = isbn;
+    }
+
+    abstract void apply(IBookRepository repo);
+
+    // Stock is borrowable before its observers run, so a borrow can be sequenced ahead of
+    // the StockAdded that made it possible. Replay then starts the book as a placeholder
+    // without details, and StockAdded fills them in, so order never matters.
+    static Book bookFor(IBookRepository repo, String isbn) {
+        Book b = repo.getBook(isbn);
+        if (b == null) {
+            repo.addBook(new Book(null, -1, isbn, -1));
+            b = repo.getBook(isbn);
+        }
+        return b;
+    }
+}
+
+class StockAdded extends InventoryEvent {
+    final String title;
+    final int authorId;
+    final int categoryId;
+    final int count;
+
+    StockAdded(long seq, long timestamp, Book book, int count) {
+        super(seq, timestamp, book.isbn);
+        this.title = book.title;
+        this.authorId = book.authorId;
+        this.categoryId = book.categoryId;
+        this.count = count;
+    }
+
+    @Override
+    void apply(IBookRepository repo) {
+        Book existing = repo.getBook(isbn);
+        if (existing == null || existing.title == null) {
+            Book b = new Book(title, authorId, isbn, categoryId);
+            if (existing != null) {
+                long counts = existing.counts();
+                b.addCopies(Book.totalOf(counts), Book.availableOf(counts));
+            }
+            repo.addBook(b);
+        }
+        repo.getBook(isbn).addCopies(count, count);
+    }
+}
+
+class Borrowed extends InventoryEvent {
+    final String userName;
+
+    Borrowed(long seq, long timestamp, String isbn, String userName) {
+        super(seq, timestamp, isbn);
+        this.userName = userName;
+    }
+
+    @Override
+    void apply(IBookRepository repo) {
+        bookFor(repo, isbn).addCopies(0, -1);
+    }
+}
+
+class Returned extends InventoryEvent {
+    final String userName;
+
+    Returned(long seq, long timestamp, String isbn, String userName) {
+        super(seq, timestamp, isbn);
+        this.userName = userName;
+    }
+
+    @Override
+    void apply(IBookRepository repo) {
+        if (!repo.exists(isbn)) {
+            repo.addBook(new Book("Unknown", "Unknown", isbn, "Misc"));
+        }
+        repo.getBook(isbn).addCopies(1, 1);
+    }
+}
+
+// Projection of every event up to seq, held as detached Book copies
+class InventorySnapshot {
+    final long seq;
+    final Book[] books;
+
+    InventorySnapshot(long seq, Book[] books) {
+        this.seq = seq;
+        this.books = books;
+    }
+}
+
+// Append-only history of LibraryService mutations (attach as an observer). Events live in
+// fixed-size chunks so appends never copy the history. Every snapshotEvery events a
+// background thread folds the new events into the previous snapshot, so recovery is
+// "latest snapshot + tail" no matter how long the history is.
+class EventStore implements InventoryObserver {
+
+    private static final int CHUNK_BITS = 14;
+
+    private InventoryEvent[][] chunks = new InventoryEvent[16][];
+    private volatile long size = 0;
+    private final long snapshotEvery;
+    private final LongSupplier clock;
+    private volatile InventorySnapshot latest = new InventorySnapshot(-1, new Book[0]);
+    private final ExecutorService compactor = Executors.newSingleThreadExecutor(task -> {
+        Thread t = new Thread(task, "event-compactor");
+        t.setDaemon(true);
+        return t;
+    });
+
+    EventStore(long snapshotEvery, LongSupplier clock) {
+        this.snapshotEvery = snapshotEvery;
+        this.clock = clock;
+    }
+
+    @Override
+    public void onStockAdded(Book book, int count) {
+        append(seq -> new StockAdded(seq, clock.getAsLong(), book, count));
+    }
+
+    @Override
+    public void onBorrowed(Book book, User user) {
+        append(seq -> new Borrowed(seq, clock.getAsLong(), book.isbn, user.name));
+    }
+
+    @Override
+    public void onReturned(Book book, User user) {
+        append(seq -> new Returned(seq, clock.getAsLong(), book.isbn, user.name));
+    }
+
+    long size() {
+        return size;
+    }
+
+    InventorySnapshot latestSnapshot() {
+        return latest;
+    }
+
+    // Audit access: events with seq >= fromSeq, oldest first
+    void forEachEvent(long fromSeq, Consumer<InventoryEvent> action) {
+        InventoryEvent[][] c;
+        long end;
+        synchronized (this) {
+            c = chunks;
+            end = size;
+        }
+        for (long seq = Math.max(0, fromSeq); seq < end; seq++) {
+            action.accept(c[(int) (seq >>> CHUNK_BITS)][(int) seq & ((1 << CHUNK_BITS) - 1)]);
+        }
+    }
+
+    // Rebuilds the projection into an empty repository: latest snapshot, then the tail
+    long recover(IBookRepository empty) {
+        InventorySnapshot snap = latest;
+        for (Book b : snap.books) {
+            empty.addBook(b.snapshot());
+        }
+        long[] replayed = { 0 };
+        forEachEvent(snap.seq + 1, e -> {
+            e.apply(empty);
+            replayed[0]++;
+        });
+        return replayed[0];
+    }
+
+    // Folds everything appended so far into a new snapshot; runs on the caller's thread
+    InventorySnapshot compact() {
+        synchronized (compactor) {
+            InventorySnapshot prev = latest;
+            long upTo = size - 1;
+            if (upTo <= prev.seq) return prev;
+
+            IBookRepository fold = new InMemoryBookRepository();
+            for (Book b : prev.books) {
+                fold.addBook(b.snapshot());
+            }
+            forEachEvent(prev.seq + 1, e -> {
+                if (e.seq <= upTo) e.apply(fold);
+            });
+            List<Book> books = new ArrayList<>();
+            fold.forEachBook(books::add);
+            latest = new InventorySnapshot(upTo, books.toArray(new Book[0]));
+            return latest;
+        }
+    }
+
+    private void append(LongFunction<InventoryEvent> factory) {
+        long seq;
+        synchronized (this) {
+            seq = size;
+            int chunk = (int) (seq >>> CHUNK_BITS);
+            if (chunk == chunks.length) chunks = Arrays.copyOf(chunks, chunk * 2);
+            if (chunks[chunk] == null) chunks[chunk] = new InventoryEvent[1 << CHUNK_BITS];
+            chunks[chunk][(int) seq & ((1 << CHUNK_BITS) - 1)] = factory.apply(seq);
+            size = seq + 1;
+        }
+        if ((seq + 1) % snapshotEvery == 0) {
+            compactor.execute(this::compact);
+        }
+    }
+}
+
+// Replay throughput of an EventStore: a full recover() from the first event, the compact()
+// that folds them into a snapshot, and a recover() from that snapshot plus a short tail.
+// Events are appended through the observer methods, as the service would. Run with
+//   java -Xmx2g questions.EventReplayBenchmark [events] [titles]
+class EventReplayBenchmark {
+
+    public static void main(String[] args) {
+        int events = args.length > 0 ? Integer.parseInt(args[0]) : 5_000_000;
+        int titles = args.length > 1 ? Integer.parseInt(args[1]) : 100_000;
+
+        for (int round = 0; round < 3; round++) { // the first rounds are JIT warm-up
+            EventStore store = new EventStore(Long.MAX_VALUE, System::currentTimeMillis); // no background compaction
+            Book[] books = new Book[titles];
+            User user = new User("patron");
+            for (int i = 0; i < titles; i++) {
+                books[i] = new Book("Title " + i, "Author " + (i % 97), "isbn-" + i, "Category " + (i % 13));
+                store.onStockAdded(books[i], 5);
+            }
+            for (int i = titles; i < events; i++) {
+                Book b = books[(int) ((i * 2654435761L) % titles)];
+                if ((i & 1) == 0) store.onBorrowed(b, user);
+                else store.onReturned(b, user);
+            }
+
+            long start = System.nanoTime();
+            long replayed = store.recover(new InMemoryBookRepository());
+            long replayNanos = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            InventorySnapshot snap = store.compact();
+            long compactNanos = System.nanoTime() - start;
+
+            for (int i = 0; i < 10_000; i++) store.onBorrowed(books[i % titles], user);
+            start = System.nanoTime();
+            long tail = store.recover(new InMemoryBookRepository());
+            long snapshotNanos = System.nanoTime() - start;
+
+            System.out.printf("round %d: replay %d events %.0f ms (%.1fM events/s), compact %.0f ms "
+                            + "(%.1fM events/s), snapshot of %d + %d events %.0f ms%n",
+                    round, replayed, replayNanos / 1e6, replayed * 1e3 / replayNanos, compactNanos / 1e6,
+                    replayed * 1e3 / compactNanos, snap.books.length, tail, snapshotNanos / 1e6);
+        }
+    }
+}
+
+// ====================== CHANGE DATA CAPTURE =====================
+
+// One availability change as downstream consumers see it. total/available are a consistent
+// pair read when the record is queued. The service notifies only after a mutation is fully
+// applied (for a return, once the copy is shelved or handed to a hold), so the pair
+// already includes the change. sequence counts per subscription; a gap means records were
+// conflated away.
+final class InventoryChange {
+
+    enum Kind { STOCKED, BORROWED, RETURNED }
+
+    final long sequence;
+    final Kind kind;
+    final String isbn;
+    final int total;
+    final int available;
+
+    InventoryChange(long sequence, Kind kind, String isbn, int total, int available) {
+        this.sequence = sequence;
+        this.kind = kind;
+        this.isbn = isbn;
+        this.total = total;
+        this.available = available;
+    }
+
+    @Override
+    public String toString() {
+        return sequence + " " + kind + " " + isbn + " " + available + "/" + total;
+    }
+}
+
+// Flow publisher fed by the service's observer hook. For every subscription the desk thread
+// takes that subscription's monitor, reads the counts, appends one record and leaves. It
+// never waits on the consumer. Because counts are read under the monitor, records for the
+// same ISBN leave in the order their counts were read, even with several desks racing.
+// Each subscription buffers up to bufferSize records. After that it conflates: later
+// changes go into a per-ISBN map that only keeps the newest record, so a lagging consumer
+// sees every ISBN's latest counts instead of every step. The map holds at most one record
+// per changed ISBN. Delivery runs on the executor with at most one drain per subscription
+// at a time, and honours request(n). The default executor is a daemon pool, so a
+// subscriber that blocks in onNext holds only its own thread.
+class InventoryChangePublisher implements InventoryObserver, Flow.Publisher<InventoryChange>, Closeable {
+
+    private final Executor executor;
+    private final int bufferSize;
+    private final List<ChangeSubscription> subscriptions = new CopyOnWriteArrayList<>();
+    private final LongAdder conflated = new LongAdder();
+    private volatile boolean closed = false;
+
+    InventoryChangePublisher(int bufferSize) {
+        this(bufferSize, Executors.newCachedThreadPool(task -> {
+            Thread t = new Thread(task, "library-cdc");
+            t.setDaemon(true);
+            return t;
+        }));
+    }
+
+    InventoryChangePublisher(int bufferSize, Executor executor) {
+        if (bufferSize < 1) throw new IllegalArgumentException("bufferSize must be positive");
+        this.bufferSize = bufferSize;
+        this.executor = executor;
+    }
+
+    @Override
+    public void subscribe(Flow.Subscriber<? super InventoryChange> subscriber) {
+        ChangeSubscription s = new ChangeSubscription(subscriber);
+        subscriptions.add(s);
+        subscriber.onSubscribe(s);
+        if (closed) s.complete();
+    }
+
+    @Override
+    public void onStockAdded(Book book, int count) {
+        publish(InventoryChange.Kind.STOCKED, book);
+    }
+
+    @Override
+    public void onBorrowed(Book book, User user) {
+        publish(InventoryChange.Kind.BORROWED, book);
+    }
+
+    @Override
+    public void onReturned(Book book, User user) {
+        publish(InventoryChange.Kind.RETURNED, book);
+    }
+
+    private void publish(InventoryChange.Kind kind, Book book) {
+        if (closed) return;
+        for (ChangeSubscription s : subscriptions) s.offer(kind, book);
+    }
+
+    int subscriberCount() {
+        return subscriptions.size();
+    }
+
+    // Records replaced by a newer one for the same ISBN before delivery, all subscribers
+    long conflated() {
+        return conflated.sum();
+    }
+
+    // Subscribers get onComplete once they have drained what is already buffered
+    @Override
+    public void close() {
+        closed = true;
+        for (ChangeSubscription s : subscriptions) s.complete();
+    }
+
+    private final class ChangeSubscription implements Flow.Subscription {
+
+        private final Flow.Subscriber<? super InventoryChange> subscriber;
+        private final ArrayDeque<InventoryChange> buffer = new ArrayDeque<>();
+        private final LinkedHashMap<String, InventoryChange> latest = new LinkedHashMap<>();
+        private final AtomicInteger wip = new AtomicInteger();   // drain requests, see schedule
+        private long demand = 0;
+        private long sequence = 0;
+        private boolean completed = false;
+        private volatile boolean cancelled = false;
+        private Throwable failure;
+
+        ChangeSubscription(Flow.Subscriber<? super InventoryChange> subscriber) {
+            this.subscriber = subscriber;
+        }
+
+        // Desk thread: O(1) under the monitor, then at most one executor hand-off
+        void offer(InventoryChange.Kind kind, Book book) {
+            if (cancelled) return;
+            boolean wake;
+            synchronized (this) {
+                long counts = book.counts();
+                InventoryChange change = new InventoryChange(++sequence, kind, book.isbn,
+                        Book.totalOf(counts), Book.availableOf(counts));
+                // Once anything is conflated everything is, until the map drains, so a
+                // buffered record never overtakes a newer one for the same ISBN
+                if (latest.isEmpty() && buffer.size() < bufferSize) {
+                    buffer.addLast(change);
+                } else if (latest.put(change.isbn, change) != null) {
+                    conflated.increment();
+                }
+                wake = demand > 0;
+            }
+            if (wake) schedule();
+        }
+
+        void complete() {
+            synchronized (this) {
+                completed = true;
+            }
+            schedule();
+        }
+
+        @Override
+        public void request(long n) {
+            if (cancelled) return;
+            synchronized (this) {
+                if (n <= 0) failure = new IllegalArgumentException("non-positive request: " + n);
+                else demand = demand + n < 0 ? Long.MAX_VALUE : demand + n;
+            }
+            schedule();
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+            subscriptions.remove(this);
+            synchronized (this) {
+                buffer.clear();
+                latest.clear();
+            }
+        }
+
+        // Only the call that moves wip off zero starts a drain; the drain loops until it
+        // has consumed every request made while it was running
+        private void schedule() {
+            if (wip.getAndIncrement() == 0) {
+                try {
+                    executor.execute(this::drain);
+                } catch (RejectedExecutionException e) {
+                    cancel();
+                }
+            }
+        }
+
+        private void drain() {
+            int missed = 1;
+            do {
+                while (!cancelled) {
+                    InventoryChange next;
+                    Throwable error = null;
+                    boolean done = false;
+                    synchronized (this) {
+                        if (failure != null) {
+                            error = failure;
+                            next = null;
+                        } else if (buffer.isEmpty() && latest.isEmpty()) {
+                            next = null;
+                            done = completed;
+                        } else if (demand == 0) {
+                            next = null;
+                        } else {
+                            next = buffer.pollFirst();
+                            if (next == null) {
+                                Iterator<InventoryChange> it = latest.values().iterator();
+                                next = it.next();
+                                it.remove();
+                            }
+                            demand--;
+                        }
+                    }
+                    if (error != null) {
+                        cancel();
+                        subscriber.onError(error);
+                        return;
+                    }
+                    if (done) {
+                        cancel();
+                        subscriber.onComplete();
+                        return;
+                    }
+                    if (next == null) break;
+                    try {
+                        subscriber.onNext(next);
+                    } catch (RuntimeException e) {
+                        cancel();   // a throwing subscriber is treated as cancelled (Flow rule 2.13)
+                        return;
+                    }
+                }
+                missed = wip.addAndGet(-missed);
+            } while (missed != 0);
+        }
+    }
+}
+
+// ====================== REPLICATION =============================
+
+// Leader/follower front for a LibraryService. Writes go to the leader unchanged. Its
+// EventStore must already be registered as one of the leader's observers, and it serves
+// as the shipped log. Each follower owns a repository (e.g. PrimitiveBookRepository) and a
+// thread that tails the log, applying events in sequence order.
+//
+// Staleness is tracked as a time: before a pass a follower samples the log size and the
+// clock, and once it has applied up to that size it publishes the sample as freshAsOf.
+// Every write acknowledged before freshAsOf is visible on that follower. Reads go to the
+// caller's follower, picked by thread id so a desk keeps one warm cache. If that follower
+// is more than maxStaleness behind, the read tries the next one and finally the leader.
+class ReplicatedLibrary implements Closeable {
+
+    private final class Follower {
+        final IBookRepository repo;
+        final Thread applier;
+        volatile long applied;                    // next event seq to apply
+        volatile long freshAsOf = NEVER;          // nanoTime; nothing older is missing
+
+        Follower(int id, IBookRepository repo) {
+            this.repo = repo;
+            InventorySnapshot snap = log.latestSnapshot();
+            for (Book b : snap.books) repo.addBook(b.snapshot());
+            applied = snap.seq + 1;
+            applier = new Thread(this::tail, "library-replica-" + id);
+            applier.setDaemon(true);
+        }
+
+        private void tail() {
+            while (running) {
+                long asOf = System.nanoTime();
+                long target = log.size();
+                if (applied < target) {
+                    log.forEachEvent(applied, e -> {
+                        if (e.seq < target) e.apply(repo);
+                    });
+                    applied = target;
+                }
+                freshAsOf = asOf;
+                LockSupport.parkNanos(pollNanos);
+            }
+        }
+
+        // Saturates before the first pass instead of overflowing to "fresh"
+        long lagNanos(long now) {
+            long fresh = freshAsOf;
+            return fresh == NEVER ? Long.MAX_VALUE : now - fresh;
+        }
+    }
+
+    private static final long NEVER = Long.MIN_VALUE;
+
+    private final LibraryService leader;
+    private final EventStore log;
+    private final Follower[] followers;
+    private final long maxStalenessNanos;
+    private final long pollNanos;
+    private final LongAdder leaderReads = new LongAdder();
+    private volatile boolean running = true;
+
+    ReplicatedLibrary(LibraryService leader, EventStore log, int replicas,
+                      Supplier<IBookRepository> repositories, long maxStaleness, TimeUnit unit) {
+        if (replicas < 1) throw new IllegalArgumentException("need at least one replica");
+        this.leader = leader;
+        this.log = log;
+        this.maxStalenessNanos = unit.toNanos(maxStaleness);
+        this.pollNanos = Math.max(10_000, Math.min(1_000_000, maxStalenessNanos / 4));
+        this.followers = new Follower[replicas];
+        for (int i = 0; i < replicas; i++) followers[i] = new Follower(i, repositories.get());
+        for (Follower f : followers) f.applier.start();
+    }
+
+    LibraryService leader() {
+        return leader;
+    }
+
+    // ---- Writes: straight to the leader ----
+
+    public LibraryResult addStock(Book b, int count, Receipt receipt) {
+        return leader.addStock(b, count, receipt);
+    }
+
+    public LibraryResult borrow(String isbn, User user, Receipt receipt) {
+        return leader.borrow(isbn, user, receipt);
+    }
+
+    public LibraryResult returnCopy(String isbn, User user, Receipt receipt) {
+        return leader.returnCopy(isbn, user, receipt);
+    }
+
+    // ---- Reads: a fresh-enough follower, else the leader ----
+
+    // -1 when the ISBN is unknown (as of the replica that answered)
+    public int availableCopies(String isbn) {
+        IBookRepository r = readReplica();
+        if (r == null) return leader.availableCopies(isbn);
+        return r.availableCopies(isbn);
+    }
+
+    public void availableCopies(String[] isbns, int[] out) {
+        IBookRepository r = readReplica();
+        if (r == null) leader.availableCopies(isbns, out);
+        else r.availableCopies(isbns, out);
+    }
+
+    private IBookRepository readReplica() {
+        long now = System.nanoTime();
+        int home = (int) (Thread.currentThread().getId() % followers.length);
+        for (int i = 0; i < followers.length; i++) {
+            Follower f = followers[(home + i) % followers.length];
+            if (f.lagNanos(now) <= maxStalenessNanos) return f.repo;
+        }
+        leaderReads.increment();
+        return null;
+    }
+
+    // Events the replica has not applied yet
+    long lag(int replica) {
+        return log.size() - followers[replica].applied;
+    }
+
+    long stalenessNanos(int replica) {
+        return followers[replica].lagNanos(System.nanoTime());
+    }
+
+    // Reads that found every follower over the staleness bound
+    long leaderReads() {
+        return leaderReads.sum();
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        for (Follower f : followers) {
+            LockSupport.unpark(f.applier);
+            try {
+                f.applier.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
+
+// ====================== FEDERATION ==============================
+
+// Shared availability view over many branches, each its own LibraryService. Every branch
+// streams its changes in through an observer, and the federation keeps only one bit per
+// (ISBN, branch): "has a copy on the shelf". Each branch also keeps the other branches
+// pre-sorted by distance, so finding the nearest copy is a walk over that order checking
+// bits: no branch is queried and the cost does not depend on catalog size.
+// The answer is a hint; the borrow at that branch is still the authority.
+class BranchFederation {
+
+    private static final class Branch {
+        final int id;
+        final String name;
+        final double lat, lon;
+        volatile int[] byDistance = new int[0]; // branch ids, nearest first (self included)
+
+        Branch(int id, String name, double lat, double lon) {
+            this.id = id;
+            this.name = name;
+            this.lat = lat;
+            this.lon = lon;
+        }
+    }
+
+    private final int maxBranches;
+    private final List<Branch> branches = new CopyOnWriteArrayList<>();
+    private final Map<String, Branch> byName = new ConcurrentHashMap<>();
+    private final Map<String, AtomicLongArray> onShelf = new ConcurrentHashMap<>();
+
+    BranchFederation(int maxBranches) {
+        this.maxBranches = maxBranches;
+    }
+
+    // Register before the branch takes traffic; its current stock is read from repo
+    synchronized void addBranch(String name, double lat, double lon, LibraryService service, IBookRepository repo) {
+        if (branches.size() == maxBranches) throw new IllegalStateException("Federation is full");
+        if (byName.containsKey(name)) throw new IllegalArgumentException("Duplicate branch " + name);
+
+        Branch branch = new Branch(branches.size(), name, lat, lon);
+        branches.add(branch);
+        byName.put(name, branch);
+        for (Branch b : branches) {
+            Integer[] order = new Integer[branches.size()];
+            for (int i = 0; i < order.length; i++) order[i] = i;
+            Arrays.sort(order, Comparator.comparingDouble(i -> distanceKm(b, branches.get(i))));
+            b.byDistance = Arrays.stream(order).mapToInt(Integer::intValue).toArray();
+        }
+
+        // Counts are re-read in update: the service notifies only once a returned copy is
+        // shelved or handed to a hold, so a return from 0 sets the bit
+        service.addObserver(new InventoryObserver() {
+            @Override
+            public void onStockAdded(Book book, int count) {
+                update(branch.id, book);
+            }
+
+            @Override
+            public void onBorrowed(Book book, User user) {
+                update(branch.id, book);
+            }
+
+            @Override
+            public void onReturned(Book book, User user) {
+                update(branch.id, book);
+            }
+        });
+        repo.forEachBook(book -> update(branch.id, book));
+    }
+
+    // Name of the closest branch (possibly fromBranch itself) with a copy on the shelf, or null
+    String nearestAvailable(String isbn, String fromBranch) {
+        AtomicLongArray bits = onShelf.get(isbn);
+        Branch from = byName.get(fromBranch);
+        if (bits == null || from == null) return null;
+        for (int id : from.byDistance) {
+            if ((bits.get(id >>> 6) & (1L << id)) != 0) return branches.get(id).name;
+        }
+        return null;
+    }
+
+    // Sets the branch's bit from the book's live count, re-checking after the CAS so a
+    // concurrent flip the other way can never leave a stale bit behind
+    private void update(int branch, Book book) {
+        AtomicLongArray bits = onShelf.computeIfAbsent(book.isbn, k -> new AtomicLongArray((maxBranches + 63) >>> 6));
+        int word = branch >>> 6;
+        long bit = 1L << branch;
+        while (true) {
+            boolean shelved = book.available() > 0;
+            long current = bits.get(word);
+            long wanted = shelved ? current | bit : current & ~bit;
+            if (current != wanted && !bits.compareAndSet(word, current, wanted)) continue;
+            if ((book.available() > 0) == shelved) return;
+        }
+    }
+
+    private static double distanceKm(Branch a, Branch b) {
+        double dLat = Math.toRadians(b.lat - a.lat), dLon = Math.toRadians(b.lon - a.lon);
+        double h = Math.sin(dLat / 2) * Math.sin(dLat / 2)
+                + Math.cos(Math.toRadians(a.lat)) * Math.cos(Math.toRadians(b.lat)) * Math.sin(dLon / 2) * Math.sin(dLon / 2);
+        return 2 * 6371 * Math.asin(Math.sqrt(h));
+    }
+}
+
+// ====================== SNAPSHOTS ===============================
+
+// File layout: [magic][count][tableOffset] header, the book records, then an open-addressing
+// table of (isbn hash, record offset) pairs so a reader can find one book without scanning.
+// Each book is written with the counters it has at that moment, so a snapshot taken under
+// traffic is fuzzy across books but never torn within one.
+class CatalogSnapshot {
+
+    static final int MAGIC = 0x4C494253; // "LIBS"
+    static final int HEADER = 16;
+    static final int ENTRY = 16;
+    static final long MAX_SIZE = Integer.MAX_VALUE; // a reader maps the file as one buffer
+
+    // DataOutputStream.size() saturates at 2 GB, so positions are counted here as a long
+    private static final class Counting extends FilterOutputStream {
+        long position = 0;
+
+        Counting(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            position++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            position += len;
+        }
+    }
+
+    static void write(IBookRepository repo, Path file) throws IOException {
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try {
+            writeTo(repo, tmp);
+        } catch (IOException e) {
+            Files.deleteIfExists(tmp);
+            throw e;
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static void writeTo(IBookRepository repo, Path tmp) throws IOException {
+        long[][] index = { new long[1024], new long[1024] }; // hashes, offsets
+        int[] count = { 0 };
+
+        try (FileChannel ch = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            Counting counting = new Counting(new BufferedOutputStream(Channels.newOutputStream(ch)));
+            DataOutputStream out = new DataOutputStream(counting);
+            out.write(new byte[HEADER]);
+            try {
+                repo.forEachBook(b -> {
+                    int n = count[0]++;
+                    if (n == index[0].length) {
+                        index[0] = Arrays.copyOf(index[0], n * 2);
+                        index[1] = Arrays.copyOf(index[1], n * 2);
+                    }
+                    index[0][n] = hash(b.isbn);
+                    index[1][n] = counting.position;
+                    try {
+                        if (counting.position > MAX_SIZE) throw new IOException("Snapshot larger than 2GB");
+                        writeString(out, b.isbn);
+                        writeString(out, b.title);
+                        writeString(out, b.author);
+                        writeString(out, b.category);
+                        long counts = b.counts();
+                        out.writeInt(Book.totalOf(counts));
+                        out.writeInt(Book.availableOf(counts));
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+
+            int capacity = Integer.highestOneBit(Math.max(1, count[0]) * 2) * 2;
+            long tableOffset = counting.position;
+            if (tableOffset + capacity * (long) ENTRY > MAX_SIZE) throw new IOException("Snapshot larger than 2GB");
+            long[] table = new long[capacity * 2];
+            for (int n = 0; n < count[0]; n++) {
+                int i = slot(index[0][n], capacity);
+                while (table[i * 2 + 1] != 0) i = (i + 1) & (capacity - 1);
+                table[i * 2] = index[0][n];
+                table[i * 2 + 1] = index[1][n];
+            }
+            for (long v : table) out.writeLong(v);
+            out.flush();
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER);
+            header.putInt(MAGIC).putInt(capacity).putLong(tableOffset).flip();
+            ch.write(header, 0);
+            ch.force(true);
+        }
+    }
+
+    // Runs on its own daemon thread so the service keeps serving while the file is written
+    static CompletableFuture<Void> writeAsync(IBookRepository repo, Path file) {
+        return CompletableFuture.runAsync(() -> {
+            try {
+                write(repo, file);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }, task -> {
+            Thread t = new Thread(task, "catalog-snapshot");
+            t.setDaemon(true);
+            t.start();
+        });
+    }
+
+    static long hash(String isbn) {
+        long h = 0xcbf29ce484222325L; // FNV-1a
+        for (int i = 0; i < isbn.length(); i++) {
+            h = (h ^ isbn.charAt(i)) * 0x100000001b3L;
+        }
+        return h;
+    }
+
+    static int slot(long hash, int capacity) {
+        return (int) (hash ^ (hash >>> 32)) & (capacity - 1);
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+}
+
+// Opens a snapshot with FileChannel.map: only the header is read up front, a book is decoded
+// from the mapping the first time it is asked for and then lives on the heap like any other.
+class MappedBookRepository implements IBookRepository {
+
+    private final MappedByteBuffer map;
+    private final int capacity;
+    private final int tableOffset;
+    private final Map<String, Book> live = new ConcurrentHashMap<>();
+
+    private MappedBookRepository(MappedByteBuffer map) throws IOException {
+        this.map = map;
+        if (map.getInt(0) != CatalogSnapshot.MAGIC) {
+            throw new IOException("Not a catalog snapshot");
+        }
+        this.capacity = map.getInt(4);
+        this.tableOffset = (int) map.getLong(8);
+    }
+
+    static MappedBookRepository open(Path file) throws IOException {
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+            return new MappedBookRepository(ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size()));
+        }
+    }
+
+    @Override
+    public void addBook(Book b) {
+        live.put(b.isbn, b);
+    }
+
+    @Override
+    public Book getBook(String isbn) {
+        Book b = live.get(isbn);
+        if (b != null) return b;
+        int offset = locate(isbn);
+        return offset < 0 ? null : live.computeIfAbsent(isbn, k -> decode(offset));
+    }
+
+    @Override
+    public boolean exists(String isbn) {
+        return live.containsKey(isbn) || locate(isbn) >= 0;
+    }
+
+    @Override
+    public void forEachBook(Consumer<Book> action) {
+        for (int i = 0; i < capacity; i++) {
+            int offset = (int) map.getLong(tableOffset + i * CatalogSnapshot.ENTRY + 8);
+            if (offset == 0) continue;
+            String isbn = readString(offset);
+            Book b = live.get(isbn);
+            action.accept(b != null ? b : decode(offset));
+        }
+        for (Book b : live.values()) {
+            if (locate(b.isbn) < 0) action.accept(b);
+        }
+    }
+
+    private int locate(String isbn) {
+        long hash = CatalogSnapshot.hash(isbn);
+        for (int i = CatalogSnapshot.slot(hash, capacity); ; i = (i + 1) & (capacity - 1)) {
+            int entry = tableOffset + i * CatalogSnapshot.ENTRY;
+            int offset = (int) map.getLong(entry + 8);
+            if (offset == 0) return -1;
+            if (map.getLong(entry) == hash && readString(offset).equals(isbn)) return offset;
+        }
+    }
+
+    private Book decode(int offset) {
+        String isbn = readString(offset);
+        offset += 4 + map.getInt(offset);
+        String title = readString(offset);
+        offset += 4 + map.getInt(offset);
+        String author = readString(offset);
+        offset += 4 + map.getInt(offset);
+        String category = readString(offset);
+        offset += 4 + map.getInt(offset);
+
+        Book b = new Book(title, author, isbn, category);
+        b.addCopies(map.getInt(offset), map.getInt(offset + 4));
+        return b;
+    }
+
+    // Absolute reads only, the mapping is shared by every desk thread
+    private String readString(int offset) {
+        byte[] bytes = new byte[map.getInt(offset)];
+        map.get(offset + 4, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
+
+// ====================== DISK STORAGE ============================
+
+// A fixed number of page frames over one file. This is all the heap the paged repository
+// uses for data. A page table finds frames and CLOCK replaces them: a pinned frame is
+// never chosen, and a dirty one is written back before reuse. One monitor guards the
+// table, but no disk I/O happens under it. A miss claims a frame, publishes it with an
+// open "loading" latch and reads outside the monitor, so a cold page stalls only the
+// threads that want that page. An evicted dirty page is copied out and written the same
+// way, and a reload of that page waits for the write. The bytes of a pinned frame belong
+// to the caller, who may update them only under the frame's own monitor.
+class BufferPool implements Closeable {
+
+    static final int PAGE = 4096;
+
+    static final class Frame {
+        final byte[] data = new byte[PAGE];
+        final ByteBuffer buf = ByteBuffer.wrap(data);
+        int pageId = -1;
+        int pins = 0;
+        boolean dirty = false;
+        boolean referenced = false;
+        CountDownLatch loading;   // non-null while the page is being read in
+    }
+
+    private final FileChannel channel;
+    private final Frame[] frames;
+    private final Map<Integer, Frame> resident = new HashMap<>();
+    private final Map<Integer, CountDownLatch> writing = new HashMap<>(); // evicted, not yet on disk
+    private int hand = 0;
+    private long hits = 0;
+    private long misses = 0;
+
+    BufferPool(FileChannel channel, int capacity) {
+        if (capacity < 8) throw new IllegalArgumentException("buffer pool needs at least 8 frames");
+        this.channel = channel;
+        this.frames = new Frame[capacity];
+        for (int i = 0; i < capacity; i++) frames[i] = new Frame();
+    }
+
+    Frame pin(int pageId) {
+        return acquire(pageId, false);
+    }
+
+    // A page that has never been written: zeroed instead of read
+    Frame pinNew(int pageId) {
+        return acquire(pageId, true);
+    }
+
+    synchronized void unpin(Frame f, boolean dirty) {
+        f.pins--;
+        f.dirty |= dirty;
+    }
+
+    // Writes every dirty page and waits for evictions still in flight, then forces the file
+    void flush() throws IOException {
+        List<byte[]> copies = new ArrayList<>();
+        List<Integer> ids = new ArrayList<>();
+        List<CountDownLatch> inFlight;
+        synchronized (this) {
+            for (Frame f : frames) {
+                if (!f.dirty || f.loading != null) continue;
+                synchronized (f) {
+                    copies.add(f.data.clone());
+                }
+                ids.add(f.pageId);
+                f.dirty = false;
+            }
+            inFlight = new ArrayList<>(writing.values());
+        }
+        for (int i = 0; i < copies.size(); i++) writePage(copies.get(i), ids.get(i));
+        for (CountDownLatch l : inFlight) awaitQuietly(l);
+        channel.force(false);
+    }
+
+    synchronized double hitRatio() {
+        long total = hits + misses;
+        return total == 0 ? 0 : (double) hits / total;
+    }
+
+    int capacity() {
+        return frames.length;
+    }
+
+    @Override
+    public void close() throws IOException {
+        flush();
+        channel.close();
+    }
+
+    private Frame acquire(int pageId, boolean fresh) {
+        Frame f;
+        CountDownLatch wait = null, written = null, pendingWrite = null;
+        byte[] evicted = null;
+        int evictedId = -1;
+        synchronized (this) {
+            f = fresh ? null : resident.get(pageId);
+            if (f != null) {
+                hits++;
+                f.pins++;
+                f.referenced = true;
+                if (f.loading == null) return f;
+                wait = f.loading;
+            } else {
+                if (!fresh) misses++;
+                f = claim();
+                if (f.dirty) {
+                    evicted = f.data.clone();
+                    evictedId = f.pageId;
+                    written = new CountDownLatch(1);
+                    writing.put(evictedId, written);
+                    f.dirty = false;
+                }
+                if (f.pageId >= 0) resident.remove(f.pageId);
+                pendingWrite = writing.get(pageId);
+                f.pageId = pageId;
+                f.pins = 1;
+                f.referenced = true;
+                f.dirty = fresh;
+                f.loading = new CountDownLatch(1);
+                resident.put(pageId, f);
+            }
+        }
+
+        if (wait != null) {
+            awaitQuietly(wait);
+            synchronized (this) {
+                if (f.pageId == pageId) return f;
+                f.pins--;
+            }
+            throw new UncheckedIOException(new IOException("Failed to load page " + pageId));
+        }
+
+        IOException error = null;
+        try {
+            if (evicted != null) {
+                try {
+                    writePage(evicted, evictedId);
+                } finally {
+                    synchronized (this) {
+                        writing.remove(evictedId);
+                    }
+                    written.countDown();
+                }
+            }
+            if (fresh) {
+                Arrays.fill(f.data, (byte) 0);
+            } else {
+                if (pendingWrite != null) awaitQuietly(pendingWrite);
+                ByteBuffer b = ByteBuffer.wrap(f.data);
+                while (b.hasRemaining() && channel.read(b, (long) pageId * PAGE + b.position()) > 0) {}
+                Arrays.fill(f.data, b.position(), PAGE, (byte) 0);
+            }
+        } catch (IOException e) {
+            error = e;
+        }
+
+        CountDownLatch loaded;
+        synchronized (this) {
+            loaded = f.loading;
+            f.loading = null;
+            if (error != null) {
+                resident.remove(pageId);
+                f.pageId = -1;
+                f.dirty = false;
+                f.pins--;
+            }
+        }
+        loaded.countDown();
+        if (error != null) throw new UncheckedIOException(error);
+        return f;
+    }
+
+    private Frame claim() {
+        for (int scanned = 0; scanned < frames.length * 2; scanned++) {
+            Frame f = frames[hand];
+            hand = (hand + 1) % frames.length;
+            if (f.pins > 0) continue;
+            if (f.referenced) {
+                f.referenced = false;
+                continue;
+            }
+            return f;
+        }
+        throw new IllegalStateException("every buffer frame is pinned");
+    }
+
+    private void writePage(byte[] data, int pageId) throws IOException {
+        ByteBuffer b = ByteBuffer.wrap(data);
+        while (b.hasRemaining()) channel.write(b, (long) pageId * PAGE + b.position());
+    }
+
+    private static void awaitQuietly(CountDownLatch latch) {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                latch.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) Thread.currentThread().interrupt();
+    }
+}
+
+// A B+-tree over BufferPool pages, keyed by the ISBN. Keys compare as UTF-8 bytes, so
+// ordered scans come back in String order for ISBNs. Leaves hold fixed 40-byte records:
+// the key, a pointer to the immutable title/author/category blob, total and available.
+// Inner pages hold separator keys and child ids. Titles live in append-only data pages,
+// which keeps records fixed-size and fan-out high: about 100 per leaf and 145 per inner
+// page, so ten million books are three levels deep. The heap holds only the pool frames.
+//
+// Inserts, splits and bulk loads take the write lock. Lookups, scans and counter updates
+// take the read lock, and a counter update also holds the leaf frame's monitor so that
+// (total, available) change together. Books handed out are live views, as in
+// PrimitiveBookRepository: counter calls go to the record and remember where it was, so
+// the next call skips the descent unless the tree has changed since.
+class PagedBookRepository implements IBookRepository, Closeable {
+
+    private static final int MAGIC = 0x4C494254; // "LIBT"
+    private static final int PAGE = BufferPool.PAGE;
+    private static final byte LEAF = 1, INNER = 2, DATA = 3;
+
+    // Page header: [type][pad][count u16][next leaf i32]; inner pages then hold child0
+    private static final int TYPE = 0, COUNT = 2, NEXT = 4, HEADER = 8;
+    private static final int KEY = 24;                             // length byte + up to 23 bytes
+    private static final int LEAF_ENTRY = KEY + 8 + 4 + 4;         // key, blob, total, available
+    private static final int INNER_ENTRY = KEY + 4;                // separator, child
+    private static final int LEAF_MAX = (PAGE - HEADER) / LEAF_ENTRY;
+    private static final int INNER_MAX = (PAGE - HEADER - 4) / INNER_ENTRY;
+    private static final int READ = 0, ADD = 1, CAS = 2;
+
+    private static final class Split {
+        final byte[] key;
+        final int page;
+
+        Split(byte[] key, int page) {
+            this.key = key;
+            this.page = page;
+        }
+    }
+
+    // Where a view's record was found, valid while the tree's modCount is unchanged
+    private static final class Position {
+        final int page;
+        final int slot;
+        final int mod;
+
+        Position(int page, int slot, int mod) {
+            this.page = page;
+            this.slot = slot;
+            this.mod = mod;
+        }
+    }
+
+    private final BufferPool pool;
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    // Page 0 holds these; written back by flush
+    private int root;
+    private int height;       // 1 = the root is a leaf
+    private int pageCount;
+    private long size;
+    private int dataPage;     // data page being filled, 0 = none yet
+    private int dataFill;
+    private int modCount;     // bumped by every insert, so cached positions can be trusted
+
+    private PagedBookRepository(FileChannel channel, int poolPages) throws IOException {
+        this.pool = new BufferPool(channel, poolPages);
+        if (channel.size() == 0) {
+            pageCount = 1;
+            pool.unpin(pool.pinNew(0), true);
+            BufferPool.Frame r = allocate(LEAF);
+            root = r.pageId;
+            height = 1;
+            pool.unpin(r, true);
+            writeMeta();
+        } else {
+            BufferPool.Frame m = pool.pin(0);
+            try {
+                if (m.buf.getInt(0) != MAGIC) throw new IOException("Not a paged catalog");
+                root = m.buf.getInt(4);
+                height = m.buf.getInt(8);
+                pageCount = m.buf.getInt(12);
+                size = m.buf.getLong(16);
+                dataPage = m.buf.getInt(24);
+                dataFill = m.buf.getInt(28);
+            } finally {
+                pool.unpin(m, false);
+            }
+        }
+    }
+
+    // Creates the file when it is missing; poolPages * 4 KB is the cache's whole footprint
+    static PagedBookRepository open(Path file, int poolPages) throws IOException {
+        FileChannel ch = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        try {
+            return new PagedBookRepository(ch, poolPages);
+        } catch (IOException | RuntimeException e) {
+            ch.close();
+            throw e;
+        }
+    }
+
+    // Same as a map put: an existing record takes the new details and counts
+    @Override
+    public void addBook(Book b) {
+        byte[] key = key(b.isbn);
+        long counts = b.counts();
+        lock.writeLock().lock();
+        try {
+            upsert(key, b, Book.totalOf(counts), Book.availableOf(counts), false);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // Lookup and insert under one write lock, so a concurrent mergeAll cannot land in between
+    @Override
+    public Book addIfAbsent(Book b) {
+        byte[] key = key(b.isbn);
+        long counts = b.counts();
+        lock.writeLock().lock();
+        try {
+            Book existing = getBook(b.isbn); // the write lock holder may take the read lock
+            if (existing != null) return existing;
+            upsert(key, b, Book.totalOf(counts), Book.availableOf(counts), false);
+            return getBook(b.isbn);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public Book getBook(String isbn) {
+        byte[] key = keyOrNull(isbn);
+        if (key == null) return null;
+        lock.readLock().lock();
+        try {
+            int leaf = findLeaf(key);
+            BufferPool.Frame f = pool.pin(leaf);
+            try {
+                int slot = searchLeaf(f, key);
+                return slot < 0 ? null : view(f, leaf, slot);
+            } finally {
+                pool.unpin(f, false);
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public boolean exists(String isbn) {
+        return availableCopies(isbn) >= 0;
+    }
+
+    // One descent and two ints, no view or blob read
+    @Override
+    public int availableCopies(String isbn) {
+        byte[] key = keyOrNull(isbn);
+        if (key == null) return -1;
+        lock.readLock().lock();
+        try {
+            BufferPool.Frame f = pool.pin(findLeaf(key));
+            try {
+                int slot = searchLeaf(f, key);
+                if (slot < 0) return -1;
+                synchronized (f) {
+                    return f.buf.getInt(leafAt(slot) + KEY + 12);
+                }
+            } finally {
+                pool.unpin(f, false);
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void forEachBook(Consumer<Book> action) {
+        forEachInRange(null, null, action);
+    }
+
+    // Ascending ISBN order over [from, to); null leaves that side open. Books come a leaf at
+    // a time: each batch is read under the read lock and handed to the action after the
+    // lock is released, so the action may itself borrow, return or add books.
+    void forEachInRange(String from, String to, Consumer<Book> action) {
+        byte[] start = from == null ? new byte[KEY] : key(from);   // the empty key sorts first
+        byte[] end = to == null ? null : key(to);
+        boolean inclusive = true;
+        List<Book> batch = new ArrayList<>();
+        while (true) {
+            boolean done = false;
+            batch.clear();
+            lock.readLock().lock();
+            try {
+                int leaf = findLeaf(start);
+                boolean first = true;
+                while (batch.isEmpty() && !done) {
+                    BufferPool.Frame f = pool.pin(leaf);
+                    try {
+                        int count = count(f), i = 0;
+                        if (first) {
+                            i = searchLeaf(f, start);
+                            i = i < 0 ? -(i + 1) : inclusive ? i : i + 1;
+                        }
+                        for (; i < count; i++) {
+                            if (end != null && compare(f.data, leafAt(i), end, 0) >= 0) {
+                                done = true;
+                                break;
+                            }
+                            batch.add(view(f, leaf, i));
+                        }
+                        if (count > 0) start = Arrays.copyOfRange(f.data, leafAt(count - 1), leafAt(count - 1) + KEY);
+                        leaf = f.buf.getInt(NEXT);
+                        if (leaf == 0) done = true;
+                    } finally {
+                        pool.unpin(f, false);
+                    }
+                    first = false;
+                }
+            } finally {
+                lock.readLock().unlock();
+            }
+            for (Book b : batch) action.accept(b);
+            if (done) return;
+            inclusive = false;
+        }
+    }
+
+    // On an empty tree the sorted input is bulk loaded: leaves are packed left to right to
+    // 90% and each inner level is built from the one below. That writes every page once,
+    // and the slack absorbs later inserts. Otherwise the books are upserted in key order,
+    // so consecutive ones land on the same few resident leaves.
+    @Override
+    public void mergeAll(Collection<Book> books) {
+        Book[] sorted = books.toArray(new Book[0]);
+        byte[][] keys = new byte[sorted.length][];
+        Integer[] order = new Integer[sorted.length];
+        for (int i = 0; i < sorted.length; i++) {
+            keys[i] = key(sorted[i].isbn);
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> compare(keys[a], 0, keys[b], 0));
+
+        lock.writeLock().lock();
+        try {
+            if (size == 0) {
+                bulkLoad(sorted, keys, order);
+            } else {
+                for (int i : order) {
+                    long counts = sorted[i].counts();
+                    upsert(keys[i], sorted[i], Book.totalOf(counts), Book.availableOf(counts), true);
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    long size() {
+        lock.readLock().lock();
+        try {
+            return size;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    int height() {
+        lock.readLock().lock();
+        try {
+            return height;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    double hitRatio() {
+        return pool.hitRatio();
+    }
+
+    // Writes the header and every dirty page, then forces the file
+    void flush() throws IOException {
+        lock.readLock().lock();
+        try {
+            writeMeta();
+            pool.flush();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        lock.writeLock().lock();
+        try {
+            writeMeta();
+            pool.close();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // ---- Tree ----
+
+    private int findLeaf(byte[] key) {
+        int page = root;
+        for (int level = height; level > 1; level--) {
+            BufferPool.Frame f = pool.pin(page);
+            try {
+                page = childFor(f, key);
+            } finally {
+                pool.unpin(f, false);
+            }
+        }
+        return page;
+    }
+
+    // Caller holds the write lock. merge adds the counts to an existing record instead of
+    // replacing it.
+    private void upsert(byte[] key, Book b, int total, int available, boolean merge) {
+        BufferPool.Frame f = pool.pin(findLeaf(key));
+        boolean found = false;
+        try {
+            int slot = searchLeaf(f, key);
+            if (slot >= 0) {
+                found = true;
+                int at = leafAt(slot) + KEY;
+                if (merge) {
+                    total += f.buf.getInt(at + 8);
+                    available += f.buf.getInt(at + 12);
+                } else {
+                    f.buf.putLong(at, appendBlob(b));
+                }
+                f.buf.putInt(at + 8, total);
+                f.buf.putInt(at + 12, available);
+            }
+        } finally {
+            pool.unpin(f, found);
+        }
+        if (found) return;
+
+        Split s = insert(root, height, key, appendBlob(b), total, available);
+        if (s != null) {
+            BufferPool.Frame r = allocate(INNER);
+            r.buf.putInt(HEADER, root);
+            putInner(r, 0, s);
+            r.buf.putShort(COUNT, (short) 1);
+            root = r.pageId;
+            height++;
+            pool.unpin(r, true);
+        }
+        size++;
+        modCount++;
+    }
+
+    // Returns the separator for the parent when the page split
+    private Split insert(int page, int level, byte[] key, long blob, int total, int available) {
+        BufferPool.Frame f = pool.pin(page);
+        boolean changed = true;
+        try {
+            if (level == 1) return insertLeaf(f, key, blob, total, available);
+            Split below = insert(childFor(f, key), level - 1, key, blob, total, available);
+            changed = below != null;
+            return changed ? insertInner(f, below) : null;
+        } finally {
+            pool.unpin(f, changed);
+        }
+    }
+
+    private Split insertLeaf(BufferPool.Frame f, byte[] key, long blob, int total, int available) {
+        int count = count(f);
+        if (count == LEAF_MAX) {
+            BufferPool.Frame g = allocate(LEAF);
+            try {
+                int half = count / 2;
+                System.arraycopy(f.data, leafAt(half), g.data, leafAt(0), (count - half) * LEAF_ENTRY);
+                g.buf.putShort(COUNT, (short) (count - half));
+                g.buf.putInt(NEXT, f.buf.getInt(NEXT));
+                f.buf.putShort(COUNT, (short) half);
+                f.buf.putInt(NEXT, g.pageId);
+                insertLeaf(compare(key, 0, g.data, leafAt(0)) < 0 ? f : g, key, blob, total, available);
+                return new Split(Arrays.copyOfRange(g.data, leafAt(0), leafAt(0) + KEY), g.pageId);
+            } finally {
+                pool.unpin(g, true);
+            }
+        }
+        int slot = -(searchLeaf(f, key) + 1);
+        System.arraycopy(f.data, leafAt(slot), f.data, leafAt(slot + 1), (count - slot) * LEAF_ENTRY);
+        putLeaf(f, slot, key, blob, total, available);
+        f.buf.putShort(COUNT, (short) (count + 1));
+        return null;
+    }
+
+    private Split insertInner(BufferPool.Frame f, Split s) {
+        int count = count(f);
+        int slot = innerSlot(f, s.key) + 1;
+        if (count < INNER_MAX) {
+            System.arraycopy(f.data, innerAt(slot), f.data, innerAt(slot + 1), (count - slot) * INNER_ENTRY);
+            putInner(f, slot, s);
+            f.buf.putShort(COUNT, (short) (count + 1));
+            return null;
+        }
+        // Full: lay the count + 1 entries out in order, keep the lower half, push the
+        // middle key up and give its child to the new page as child0
+        byte[] all = new byte[(count + 1) * INNER_ENTRY];
+        System.arraycopy(f.data, innerAt(0), all, 0, slot * INNER_ENTRY);
+        System.arraycopy(s.key, 0, all, slot * INNER_ENTRY, KEY);
+        ByteBuffer.wrap(all).putInt(slot * INNER_ENTRY + KEY, s.page);
+        System.arraycopy(f.data, innerAt(slot), all, (slot + 1) * INNER_ENTRY, (count - slot) * INNER_ENTRY);
+
+        int mid = (count + 1) / 2;
+        BufferPool.Frame g = allocate(INNER);
+        try {
+            System.arraycopy(all, 0, f.data, innerAt(0), mid * INNER_ENTRY);
+            f.buf.putShort(COUNT, (short) mid);
+            g.buf.putInt(HEADER, ByteBuffer.wrap(all).getInt(mid * INNER_ENTRY + KEY));
+            System.arraycopy(all, (mid + 1) * INNER_ENTRY, g.data, innerAt(0), (count - mid) * INNER_ENTRY);
+            g.buf.putShort(COUNT, (short) (count - mid));
+            return new Split(Arrays.copyOfRange(all, mid * INNER_ENTRY, mid * INNER_ENTRY + KEY), g.pageId);
+        } finally {
+            pool.unpin(g, true);
+        }
+    }
+
+    // Caller holds the write lock and the keys are sorted; duplicates have their counts summed
+    private void bulkLoad(Book[] books, byte[][] keys, Integer[] order) {
+        int fill = LEAF_MAX * 9 / 10;
+        List<byte[]> firsts = new ArrayList<>();
+        List<Integer> pages = new ArrayList<>();
+        BufferPool.Frame leaf = null;
+        int count = 0;
+        byte[] previous = null;
+        for (int i : order) {
+            long counts = books[i].counts();
+            if (previous != null && compare(previous, 0, keys[i], 0) == 0) {
+                int at = leafAt(count - 1) + KEY;
+                leaf.buf.putInt(at + 8, leaf.buf.getInt(at + 8) + Book.totalOf(counts));
+                leaf.buf.putInt(at + 12, leaf.buf.getInt(at + 12) + Book.availableOf(counts));
+                continue;
+            }
+            if (leaf == null || count == fill) {
+                BufferPool.Frame next = leaf == null ? pool.pin(root) : allocate(LEAF);
+                if (leaf != null) {
+                    leaf.buf.putShort(COUNT, (short) count);
+                    leaf.buf.putInt(NEXT, next.pageId);
+                    pool.unpin(leaf, true);
+                }
+                leaf = next;
+                count = 0;
+                firsts.add(keys[i]);
+                pages.add(leaf.pageId);
+            }
+            putLeaf(leaf, count++, keys[i], appendBlob(books[i]), Book.totalOf(counts), Book.availableOf(counts));
+            previous = keys[i];
+            size++;
+        }
+        if (leaf == null) return;
+        leaf.buf.putShort(COUNT, (short) count);
+        pool.unpin(leaf, true);
+
+        int innerFill = INNER_MAX * 9 / 10;
+        while (pages.size() > 1) {
+            List<byte[]> upperFirsts = new ArrayList<>();
+            List<Integer> upperPages = new ArrayList<>();
+            for (int from = 0; from < pages.size(); from += innerFill + 1) {
+                int to = Math.min(pages.size(), from + innerFill + 1);
+                BufferPool.Frame node = allocate(INNER);
+                node.buf.putInt(HEADER, pages.get(from));
+                for (int c = from + 1; c < to; c++) putInner(node, c - from - 1, new Split(firsts.get(c), pages.get(c)));
+                node.buf.putShort(COUNT, (short) (to - from - 1));
+                upperFirsts.add(firsts.get(from));
+                upperPages.add(node.pageId);
+                pool.unpin(node, true);
+            }
+            firsts = upperFirsts;
+            pages = upperPages;
+            height++;
+        }
+        root = pages.get(0);
+        modCount++;
+    }
+
+    // ---- Counters on a live view ----
+
+    private long counter(PagedBook b, int op, int x, int y) {
+        lock.readLock().lock();
+        try {
+            Position p = b.position;
+            if (p.mod != modCount) {
+                byte[] key = key(b.isbn);
+                int leaf = findLeaf(key);
+                BufferPool.Frame f = pool.pin(leaf);
+                int slot = searchLeaf(f, key);
+                pool.unpin(f, false);
+                if (slot < 0) throw new IllegalStateException("Record missing for " + b.isbn);
+                b.position = p = new Position(leaf, slot, modCount);
+            }
+            BufferPool.Frame f = pool.pin(p.page);
+            boolean changed = false;
+            try {
+                synchronized (f) {
+                    int at = leafAt(p.slot) + KEY + 8;
+                    int total = f.buf.getInt(at), available = f.buf.getInt(at + 4);
+                    if (op == CAS) {
+                        if (available != x) return 0;
+                        f.buf.putInt(at + 4, y);
+                        changed = true;
+                        return 1;
+                    }
+                    if (op == ADD) {
+                        f.buf.putInt(at, total += x);
+                        f.buf.putInt(at + 4, available += y);
+                        changed = true;
+                    }
+                    return Book.pack(total, available);
+                }
+            } finally {
+                pool.unpin(f, changed);
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private final class PagedBook extends Book {
+        volatile Position position;
+
+        PagedBook(String[] details, String isbn, Position position, long counts) {
+            super(details[0], details[1], isbn, details[2]);
+            this.position = position;
+            this.totalCopies = Book.totalOf(counts);
+            this.availableCopies = Book.availableOf(counts);
+        }
+
+        @Override
+        int total() {
+            return Book.totalOf(counts());
+        }
+
+        @Override
+        int available() {
+            return Book.availableOf(counts());
+        }
+
+        @Override
+        boolean casAvailable(int expect, int update) {
+            return counter(this, CAS, expect, update) != 0;
+        }
+
+        @Override
+        void addCopies(int total, int available) {
+            counter(this, ADD, total, available);
+        }
+
+        @Override
+        long counts() {
+            return counter(this, READ, 0, 0);
+        }
+    }
+
+    // f is pinned by the caller, who holds at least the read lock
+    private PagedBook view(BufferPool.Frame f, int leaf, int slot) {
+        int at = leafAt(slot) + KEY;
+        long blob = f.buf.getLong(at);
+        long counts;
+        synchronized (f) {
+            counts = Book.pack(f.buf.getInt(at + 8), f.buf.getInt(at + 12));
+        }
+        String isbn = new String(f.data, leafAt(slot) + 1, f.data[leafAt(slot)], StandardCharsets.UTF_8);
+        return new PagedBook(readBlob(blob), isbn, new Position(leaf, slot, modCount), counts);
+    }
+
+    // ---- Data pages: title, author, category as [len i16][utf-8], -1 for null ----
+
+    private long appendBlob(Book b) {
+        byte[][] parts = { utf8(b.title), utf8(b.author), utf8(b.category) };
+        int need = 0;
+        for (byte[] p : parts) need += 2 + (p == null ? 0 : p.length);
+        if (need > PAGE - HEADER) throw new IllegalArgumentException("Book details do not fit a page: " + b.isbn);
+        if (dataPage == 0 || dataFill + need > PAGE) {
+            BufferPool.Frame d = allocate(DATA);
+            dataPage = d.pageId;
+            dataFill = HEADER;
+            pool.unpin(d, true);
+        }
+        BufferPool.Frame d = pool.pin(dataPage);
+        long pointer = (long) dataPage * PAGE + dataFill;
+        int at = dataFill;
+        for (byte[] p : parts) {
+            d.buf.putShort(at, (short) (p == null ? -1 : p.length));
+            at += 2;
+            if (p != null) {
+                System.arraycopy(p, 0, d.data, at, p.length);
+                at += p.length;
+            }
+        }
+        dataFill = at;
+        pool.unpin(d, true);
+        return pointer;
+    }
+
+    private String[] readBlob(long pointer) {
+        BufferPool.Frame d = pool.pin((int) (pointer / PAGE));
+        try {
+            String[] parts = new String[3];
+            int at = (int) (pointer % PAGE);
+            for (int i = 0; i < 3; i++) {
+                int len = d.buf.getShort(at);
+                at += 2;
+                if (len >= 0) {
+                    parts[i] = new String(d.data, at, len, StandardCharsets.UTF_8);
+                    at += len;
+                }
+            }
+            return parts;
+        } finally {
+            pool.unpin(d, false);
+        }
+    }
+
+    private static byte[] utf8(String s) {
+        return s == null ? null : s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    // ---- Page helpers ----
+
+    private BufferPool.Frame allocate(byte type) {
+        BufferPool.Frame f = pool.pinNew(pageCount++);
+        f.data[TYPE] = type;
+        return f;
+    }
+
+    private void writeMeta() {
+        BufferPool.Frame m = pool.pin(0);
+        m.buf.putInt(0, MAGIC).putInt(4, root).putInt(8, height).putInt(12, pageCount)
+                .putLong(16, size).putInt(24, dataPage).putInt(28, dataFill);
+        pool.unpin(m, true);
+    }
+
+    private static int count(BufferPool.Frame f) {
+        return f.buf.getShort(COUNT) & 0xFFFF;
+    }
+
+    private static int leafAt(int slot) {
+        return HEADER + slot * LEAF_ENTRY;
+    }
+
+    private static int innerAt(int slot) {
+        return HEADER + 4 + slot * INNER_ENTRY;
+    }
+
+    private static void putLeaf(BufferPool.Frame f, int slot, byte[] key, long blob, int total, int available) {
+        int at = leafAt(slot);
+        System.arraycopy(key, 0, f.data, at, KEY);
+        f.buf.putLong(at + KEY, blob).putInt(at + KEY + 8, total).putInt(at + KEY + 12, available);
+    }
+
+    private static void putInner(BufferPool.Frame f, int slot, Split s) {
+        System.arraycopy(s.key, 0, f.data, innerAt(slot), KEY);
+        f.buf.putInt(innerAt(slot) + KEY, s.page);
+    }
+
+    // Slot of the key, or -(insertion point + 1)
+    private static int searchLeaf(BufferPool.Frame f, byte[] key) {
+        int lo = 0, hi = count(f) - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int c = compare(f.data, leafAt(mid), key, 0);
+            if (c < 0) lo = mid + 1;
+            else if (c > 0) hi = mid - 1;
+            else return mid;
+        }
+        return -(lo + 1);
+    }
+
+    // Last separator <= key, -1 when the key belongs under child0
+    private static int innerSlot(BufferPool.Frame f, byte[] key) {
+        int lo = 0, hi = count(f) - 1, found = -1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            if (compare(f.data, innerAt(mid), key, 0) <= 0) {
+                found = mid;
+                lo = mid + 1;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return found;
+    }
+
+    private static int childFor(BufferPool.Frame f, byte[] key) {
+        int slot = innerSlot(f, key);
+        return f.buf.getInt(slot < 0 ? HEADER : innerAt(slot) + KEY);
+    }
+
+    // Keys are [length][utf-8 bytes] padded to KEY; compares as unsigned bytes, then length
+    private static int compare(byte[] a, int aAt, byte[] b, int bAt) {
+        int la = a[aAt], lb = b[bAt];
+        return Arrays.compareUnsigned(a, aAt + 1, aAt + 1 + la, b, bAt + 1, bAt + 1 + lb);
+    }
+
+    private static byte[] key(String isbn) {
+        byte[] key = keyOrNull(isbn);
+        if (key == null) throw new IllegalArgumentException("Id longer than " + (KEY - 1) + " bytes: " + isbn);
+        return key;
+    }
+
+    // null for ids too long to have been stored
+    private static byte[] keyOrNull(String isbn) {
+        byte[] bytes = isbn.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length >= KEY) return null;
+        byte[] key = new byte[KEY];
+        key[0] = (byte) bytes.length;
+        System.arraycopy(bytes, 0, key, 1, bytes.length);
+        return key;
+    }
+}
+
+// ====================== SEARCH ==================================
+
+interface BookSearch {
+    List<Book> search(String query, int k);
+}
+
+// Decorator that keeps an inverted index over title/author/category in step with addBook,
+// so books stocked through LibraryService are searchable as soon as they are added.
+// Postings are doc-id ordered (ids only grow), so a query is one merge over its terms'
+// lists plus a k-sized heap; ranking is idf-weighted with title > author > category.
+class SearchableBookRepository implements IBookRepository, BookSearch {
+
+    private static final float TITLE = 3f, AUTHOR = 2f, CATEGORY = 1f;
+
+    private static final class Postings {
+        int[] docs = new int[4];
+        float[] weights = new float[4];
+        float maxWeight;
+        int size;
+
+        void add(int doc, float weight) {
+            maxWeight = Math.max(maxWeight, weight);
+            if (size == docs.length) {
+                docs = Arrays.copyOf(docs, size * 2);
+                weights = Arrays.copyOf(weights, size * 2);
+            }
+            docs[size] = doc;
+            weights[size++] = weight;
+        }
+    }
+
+    private final IBookRepository inner;
+    private final Map<String, Postings> index = new HashMap<>();
+    private final Map<String, Integer> docOf = new HashMap<>();
+    private final List<String> isbnOf = new ArrayList<>();
+    private final BitSet replaced = new BitSet(); // docs superseded by a later addBook
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    SearchableBookRepository(IBookRepository inner) {
+        this.inner = inner;
+        inner.forEachBook(this::index);
+    }
+
+    @Override
+    public void addBook(Book b) {
+        inner.addBook(b);
+        index(b);
+    }
+
+    @Override
+    public Book getBook(String isbn) {
+        return inner.getBook(isbn);
+    }
+
+    @Override
+    public boolean exists(String isbn) {
+        return inner.exists(isbn);
+    }
+
+    @Override
+    public void forEachBook(Consumer<Book> action) {
+        inner.forEachBook(action);
+    }
+
+    @Override
+    public List<Book> search(String query, int k) {
+        List<String> terms = tokenize(query);
+        List<Book> result = new ArrayList<>();
+        if (terms.isEmpty() || k <= 0) return result;
+
+        PriorityQueue<Long> top = new PriorityQueue<>(k + 1); // entry(score, doc), lowest score at the head
+        lock.readLock().lock();
+        try {
+            int live = isbnOf.size() - replaced.cardinality();
+            Postings[] lists = new Postings[terms.size()];
+            float[] idf = new float[terms.size()];
+            for (int t = 0; t < lists.length; t++) {
+                lists[t] = index.get(terms.get(t));
+                idf[t] = lists[t] == null ? 0 : (float) Math.log(1 + (double) live / lists[t].size);
+            }
+
+            // MaxScore: terms sorted by their best possible contribution; once the heap is
+            // full, the cheapest terms that together cannot beat its minimum stop driving the
+            // merge and are only probed (by binary search) for docs the others produce.
+            Integer[] order = new Integer[lists.length];
+            for (int t = 0; t < order.length; t++) order[t] = t;
+            Arrays.sort(order, Comparator.comparingDouble(t -> bound(lists[t], idf[t])));
+            float[] prefix = new float[order.length + 1];
+            for (int o = 0; o < order.length; o++) prefix[o + 1] = prefix[o] + bound(lists[order[o]], idf[order[o]]);
+
+            int[] cursor = new int[lists.length];
+            int essentialFrom = 0;
+            while (true) {
+                int doc = Integer.MAX_VALUE;
+                for (int o = essentialFrom; o < order.length; o++) {
+                    Postings p = lists[order[o]];
+                    if (p != null && cursor[order[o]] < p.size) doc = Math.min(doc, p.docs[cursor[order[o]]]);
+                }
+                if (doc == Integer.MAX_VALUE) break;
+
+                float score = 0;
+                for (int o = 0; o < order.length; o++) {
+                    int t = order[o];
+                    Postings p = lists[t];
+                    if (p == null) continue;
+                    if (o < essentialFrom) cursor[t] = seek(p, cursor[t], doc);
+                    if (cursor[t] < p.size && p.docs[cursor[t]] == doc) {
+                        score += idf[t] * p.weights[cursor[t]++];
+                    }
+                }
+                if (replaced.get(doc)) continue;
+                if (top.size() < k) {
+                    top.add(entry(score, doc));
+                } else if (score > scoreOf(top.peek())) {
+                    top.poll();
+                    top.add(entry(score, doc));
+                } else {
+                    continue;
+                }
+                if (top.size() == k) {
+                    float threshold = scoreOf(top.peek());
+                    while (essentialFrom < order.length && prefix[essentialFrom + 1] < threshold) essentialFrom++;
+                }
+            }
+
+            while (!top.isEmpty()) {
+                result.add(inner.getBook(isbnOf.get((int) (long) top.poll())));
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        Collections.reverse(result);
+        return result;
+    }
+
+    // Score bits above the doc id. Scores are never negative, so their bits order like the
+    // floats, and the doc keeps all 32 bits (a float only holds ids exactly up to 2^24).
+    private static long entry(float score, int doc) {
+        return (long) Float.floatToIntBits(score) << 32 | doc;
+    }
+
+    private static float scoreOf(long entry) {
+        return Float.intBitsToFloat((int) (entry >>> 32));
+    }
+
+    private static float bound(Postings p, float idf) {
+        return p == null ? 0 : idf * p.maxWeight;
+    }
+
+    // First position at or after from whose doc is >= doc
+    private static int seek(Postings p, int from, int doc) {
+        int lo = from, hi = p.size;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (p.docs[mid] < doc) lo = mid + 1;
+            else hi = mid;
+        }
+        return lo;
+    }
+
+    private void index(Book b) {
+        Map<String, Float> weights = new HashMap<>();
+        for (String t : tokenize(b.title)) weights.merge(t, TITLE, Float::sum);
+        for (String t : tokenize(b.author)) weights.merge(t, AUTHOR, Float::sum);
+        for (String t : tokenize(b.category)) weights.merge(t, CATEGORY, Float::sum);
+
+        lock.writeLock().lock();
+        try {
+            Integer previous = docOf.get(b.isbn);
+            if (previous != null) replaced.set(previous);
+            int doc = isbnOf.size();
+            isbnOf.add(b.isbn);
+            docOf.put(b.isbn, doc);
+            for (Map.Entry<String, Float> e : weights.entrySet()) {
+                index.computeIfAbsent(e.getKey(), t -> new Postings()).add(doc, e.getValue());
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private static List<String> tokenize(String text) {
+        List<String> terms = new ArrayList<>();
+        if (text == null) return terms;
+        int start = -1;
+        for (int i = 0; i <= text.length(); i++) {
+            boolean word = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+            if (word && start < 0) start = i;
+            if (!word && start >= 0) {
+                terms.add(text.substring(start, i).toLowerCase(Locale.ROOT));
+                start = -1;
+            }
+        }
+        return terms;
+    }
+}
+
+// ====================== HTTP ====================================
+
+// Plain-text HTTP front end on the JDK's built-in server, one thread per request:
+//   GET  /availability?isbn=
+//   POST /borrow?isbn=&user=        POST /return?isbn=&user=
+//   POST /stock?isbn=&title=&author=&category=&count=
+// Replies are "<RESULT> <available>". Virtual threads are used when the JDK has them
+// (21+); on older JDKs it falls back to a cached platform-thread pool.
+// Start the JVM with -Dsun.net.httpserver.nodelay=true: without TCP_NODELAY every small
+// reply waits out the client's delayed ACK (~40ms). The JDK server reads the property
+// once, process-wide, so it belongs on the command line rather than in this class.
+class LibraryHttpServer implements Closeable {
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final LibraryService service;
+    private final Map<String, User> users = new ConcurrentHashMap<>();
+
+    LibraryHttpServer(LibraryService service, int port) throws IOException {
+        this.service = service;
+        this.server = HttpServer.create(new InetSocketAddress(port), 4096);
+        this.executor = perRequestExecutor();
+        server.setExecutor(executor);
+
+        server.createContext("/availability", ex -> handle(ex, "GET", q -> {
+            int available = service.availableCopies(q.get("isbn"));
+            return (available < 0 ? LibraryResult.NOT_FOUND : LibraryResult.FOUND) + " " + available;
+        }));
+        server.createContext("/borrow", ex -> handle(ex, "POST", q -> {
+            Receipt r = new Receipt();
+            service.borrow(q.get("isbn"), user(q), r);
+            return r.result + " " + r.available;
+        }));
+        server.createContext("/return", ex -> handle(ex, "POST", q -> {
+            Receipt r = new Receipt();
+            service.returnCopy(q.get("isbn"), user(q), r);
+            return r.result + " " + r.available;
+        }));
+        server.createContext("/stock", ex -> handle(ex, "POST", q -> {
+            Receipt r = new Receipt();
+            Book b = new Book(q.getOrDefault("title", "Unknown"), q.getOrDefault("author", "Unknown"),
+                    q.get("isbn"), q.getOrDefault("category", "Misc"));
+            service.addStock(b, Integer.parseInt(q.getOrDefault("count", "1")), r);
+            return r.result + " " + r.available;
+        }));
+    }
+
+    void start() {
+        server.start();
+    }
+
+    int port() {
+        return server.getAddress().getPort();
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    static ExecutorService perRequestExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newCachedThreadPool(task -> {
+                Thread t = new Thread(task, "library-http");
+                t.setDaemon(true);
+                return t;
+            });
+        }
+    }
+
+    private User user(Map<String, String> query) {
+        String name = query.get("user");
+        if (name == null) throw new IllegalArgumentException("user is required");
+        return users.computeIfAbsent(name, User::new);
+    }
+
+    private void handle(HttpExchange ex, String method, Function<Map<String, String>, String> action) throws IOException {
+        int status;
+        String body;
+        try {
+            if (!method.equals(ex.getRequestMethod())) {
+                status = 405;
+                body = "use " + method;
+            } else {
+                Map<String, String> query = parseQuery(ex.getRequestURI().getRawQuery());
+                if (query.get("isbn") == null) throw new IllegalArgumentException("isbn is required");
+                body = action.apply(query);
+                status = body.startsWith("NOT_FOUND") ? 404 : body.startsWith("POLICY_DENIED") ? 409 : 200;
+            }
+        } catch (IllegalArgumentException e) {
+            status = 400;
+            body = String.valueOf(e.getMessage());
+        }
+
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        ex.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+        ex.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = ex.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    private static Map<String, String> parseQuery(String raw) {
+        Map<String, String> query = new HashMap<>();
+        if (raw == null) return query;
+        for (String pair : raw.split("&")) {
+            int eq = pair.indexOf('=');
+            if (eq <= 0) continue;
+            query.put(URLDecoder.decode(pair.substring(0, eq), StandardCharsets.UTF_8),
+                    URLDecoder.decode(pair.substring(eq + 1), StandardCharsets.UTF_8));
+        }
+        return query;
+    }
+}
+
+// Closed-loop load: each client sends its next request only after the previous reply, a
+// readsPerWrite:1 mix of availability checks to borrow+return pairs over the given ISBNs.
+// Without a URL, main serves a stocked in-memory catalog in-process and drives that:
+//   java -Dsun.net.httpserver.nodelay=true questions.LibraryLoadGenerator [clients] [seconds] [url]
+class LibraryLoadGenerator {
+
+    public static void main(String[] args) throws Exception {
+        int clients = args.length > 0 ? Integer.parseInt(args[0]) : 16;
+        long seconds = args.length > 1 ? Long.parseLong(args[1]) : 10;
+        if (!"true".equals(System.getProperty("sun.net.httpserver.nodelay"))) {
+            System.out.println("warning: sun.net.httpserver.nodelay is not set, expect ~40ms delayed-ACK latency");
+        }
+
+        List<String> isbns = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) isbns.add(String.format("978%010d", i));
+        if (args.length > 2) {
+            System.out.println(new LibraryLoadGenerator(URI.create(args[2]), isbns, 9).run(clients, seconds * 1000));
+            return;
+        }
+
+        LibraryService service = new LibraryService(new InMemoryBookRepository(), new DefaultBorrowPolicy());
+        for (String isbn : isbns) service.addStock(new Book("Title " + isbn, "Author", isbn, "Fiction"), 5, null);
+        try (LibraryHttpServer server = new LibraryHttpServer(service, 0)) {
+            server.start();
+            URI base = URI.create("http://localhost:" + server.port());
+            System.out.println(new LibraryLoadGenerator(base, isbns, 9).run(clients, seconds * 1000));
+        }
+    }
+
+    static final class Report {
+        final long requests;
+        final long errors;
+        final double seconds;
+        final LatencyHistogram latency;
+
+        Report(long requests, long errors, double seconds, LatencyHistogram latency) {
+            this.requests = requests;
+            this.errors = errors;
+            this.seconds = seconds;
+            this.latency = latency;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d requests in %.1fs (%.0f req/s), %d errors, p50=%dus p99=%dus p99.9=%dus",
+                    requests, seconds, requests / seconds, errors, latency.percentile(0.5) / 1000,
+                    latency.percentile(0.99) / 1000, latency.percentile(0.999) / 1000);
+        }
+    }
+
+    private final URI base;
+    private final List<String> isbns;
+    private final int readsPerWrite;
+    private final HttpClient client;
+
+    LibraryLoadGenerator(URI base, List<String> isbns, int readsPerWrite) {
+        this.base = base;
+        this.isbns = isbns;
+        this.readsPerWrite = readsPerWrite;
+        this.client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1)
+                .executor(LibraryHttpServer.perRequestExecutor()).build();
+    }
+
+    Report run(int clients, long durationMillis) throws InterruptedException {
+        LatencyHistogram latency = new LatencyHistogram();
+        LongAdder requests = new LongAdder(), errors = new LongAdder();
+        long start = System.nanoTime(), deadline = start + durationMillis * 1_000_000;
+        ExecutorService pool = LibraryHttpServer.perRequestExecutor();
+
+        for (int c = 0; c < clients; c++) {
+            String user = "load-" + c;
+            pool.execute(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                while (System.nanoTime() < deadline) {
+                    String isbn = URLEncoder.encode(isbns.get(random.nextInt(isbns.size())), StandardCharsets.UTF_8);
+                    if (random.nextInt(readsPerWrite + 1) < readsPerWrite) {
+                        send("GET", "/availability?isbn=" + isbn, latency, requests, errors);
+                    } else if (send("POST", "/borrow?isbn=" + isbn + "&user=" + user, latency, requests, errors)) {
+                        send("POST", "/return?isbn=" + isbn + "&user=" + user, latency, requests, errors);
+                    }
+                }
+            });
+        }
+        pool.shutdown();
+        pool.awaitTermination(durationMillis + 60_000, TimeUnit.MILLISECONDS);
+        return new Report(requests.sum(), errors.sum(), (System.nanoTime() - start) / 1e9, latency);
+    }
+
+    // true when the server answered 200
+    private boolean send(String method, String path, LatencyHistogram latency, LongAdder requests, LongAdder errors) {
+        HttpRequest request = HttpRequest.newBuilder(base.resolve(path))
+                .method(method, HttpRequest.BodyPublishers.noBody()).build();
+        long t0 = System.nanoTime();
+        try {
+            HttpResponse<String> response = client.send(request, HttpResponse.BodyHandlers.ofString());
+            latency.record(System.nanoTime() - t0);
+            requests.increment();
+            return response.statusCode() == 200;
+        } catch (IOException e) {
+            errors.increment();
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
     }
 }
 